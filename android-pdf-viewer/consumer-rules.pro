@@ -0,0 +1,8 @@
+# Private members of PdfiumCore used by NativePageCloser to close single pages
+-keepclassmembers class com.shockwave.pdfium.PdfiumCore {
+    private static java.lang.Object lock;
+    private native void nativeClosePage(long);
+}
+-keepclassmembers class com.shockwave.pdfium.PdfDocument {
+    *** mNativePagesPtr;
+}
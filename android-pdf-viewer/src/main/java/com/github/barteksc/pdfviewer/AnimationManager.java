@@ -125,6 +125,13 @@ class AnimationManager {
         return flinging || pageFlinging;
     }
 
+    /**
+     * @return true while a fling or an animation moves or zooms the view
+     */
+    public boolean isAnimating() {
+        return flinging || (animation != null && animation.isRunning());
+    }
+
     class XAnimation extends AnimatorListenerAdapter implements AnimatorUpdateListener {
 
         @Override
@@ -136,15 +143,16 @@ class AnimationManager {
 
         @Override
         public void onAnimationCancel(Animator animation) {
-            pdfView.loadPages();
+            // not flinging anymore, so pages are loaded as at rest
             pageFlinging = false;
+            pdfView.loadPages();
             hideHandle();
         }
 
         @Override
         public void onAnimationEnd(Animator animation) {
-            pdfView.loadPages();
             pageFlinging = false;
+            pdfView.loadPages();
             hideHandle();
         }
     }
@@ -160,15 +168,15 @@ class AnimationManager {
 
         @Override
         public void onAnimationCancel(Animator animation) {
-            pdfView.loadPages();
             pageFlinging = false;
+            pdfView.loadPages();
             hideHandle();
         }
 
         @Override
         public void onAnimationEnd(Animator animation) {
-            pdfView.loadPages();
             pageFlinging = false;
+            pdfView.loadPages();
             hideHandle();
         }
     }
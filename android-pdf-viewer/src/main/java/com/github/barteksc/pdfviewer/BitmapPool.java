@@ -0,0 +1,145 @@
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.LongSparseArray;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps bitmaps of evicted parts, so they can be reused for new parts of the same
+ * size and config instead of allocating and recycling native memory on every part.
+ */
+class BitmapPool {
+
+    /**
+     * Pooled bitmaps grouped by size and config
+     */
+    private final LongSparseArray<ArrayDeque<Bitmap>> pool = new LongSparseArray<>();
+
+    /**
+     * All pooled bitmaps, least recently added first
+     */
+    private final ArrayDeque<Bitmap> order = new ArrayDeque<>();
+
+    private long maxPoolBytes;
+
+    private long pooledBytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public BitmapPool(long maxPoolBytes) {
+        this.maxPoolBytes = maxPoolBytes;
+    }
+
+    /**
+     * Get a cleared bitmap from the pool or create a new one
+     *
+     * @throws IllegalArgumentException if bitmap cannot be created
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Get a cleared bitmap with exactly given size and config
+     *
+     * @return pooled bitmap or null if there is none
+     */
+    @Nullable
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bitmaps = pool.get(key(width, height, config));
+        Bitmap bitmap = bitmaps != null ? bitmaps.pollLast() : null;
+        if (bitmap == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        order.remove(bitmap);
+        pooledBytes -= bitmap.getAllocationByteCount();
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Return bitmap to the pool, recycling it if it cannot be reused
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bytes > maxPoolBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = pool.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            pool.put(key, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        order.addLast(bitmap);
+        pooledBytes += bytes;
+
+        trimToSize(maxPoolBytes);
+    }
+
+    public synchronized void setMaxPoolBytes(long maxPoolBytes) {
+        this.maxPoolBytes = maxPoolBytes;
+        trimToSize(maxPoolBytes);
+    }
+
+    /**
+     * Recycle least recently pooled bitmaps until pool takes at most given number of bytes
+     */
+    public synchronized void trimToSize(long bytes) {
+        while (pooledBytes > bytes && !order.isEmpty()) {
+            Bitmap bitmap = order.pollFirst();
+            pool.get(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+            pooledBytes -= bitmap.getAllocationByteCount();
+            evictions++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycle all pooled bitmaps
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+        pool.clear();
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized RenderStats.Tier getStats() {
+        return new RenderStats.Tier(hits, misses, 0, evictions, pooledBytes);
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+    }
+}
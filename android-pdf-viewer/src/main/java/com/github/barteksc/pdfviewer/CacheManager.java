@@ -15,127 +15,612 @@
  */
 package com.github.barteksc.pdfviewer;
 
-import android.graphics.RectF;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
 
 import androidx.annotation.Nullable;
 
 import com.github.barteksc.pdfviewer.model.PagePart;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.PriorityQueue;
 
 import static com.github.barteksc.pdfviewer.util.Constants.Cache.CACHE_SIZE;
-import static com.github.barteksc.pdfviewer.util.Constants.Cache.THUMBNAILS_CACHE_SIZE;
+import static com.github.barteksc.pdfviewer.util.Constants.Cache.TRIM_GROWTH_STEPS;
+import static com.github.barteksc.pdfviewer.util.Constants.PART_SIZE;
 
 class CacheManager {
 
-    private final PriorityQueue<PagePart> passiveCache;
+    /**
+     * Passive parts in eviction order. Parts promoted to the active set are not removed
+     * from here but skipped, because they are no longer indexed in {@link #passiveParts}
+     */
+    private final ArrayDeque<PagePart> passiveCache;
 
     private final PriorityQueue<PagePart> activeCache;
 
-    private final List<PagePart> thumbnails;
+    /**
+     * Passive and active parts indexed by {@link PagePart#getKey()}
+     */
+    private final LongHashMap<PagePart> passiveParts;
+
+    private final LongHashMap<PagePart> activeParts;
+
+    /**
+     * Thumbnails indexed by page, in least recently used order
+     */
+    private final LinkedHashMap<Integer, PagePart> thumbnails;
 
     private final Object passiveActiveLock = new Object();
 
     private final PagePartComparator orderComparator = new PagePartComparator();
 
-    public CacheManager() {
+    /**
+     * Maximum number of bytes the rendered parts may occupy
+     */
+    private long maxCacheBytes;
+
+    /**
+     * Number of bytes currently allocated by the bitmaps of passive and active parts
+     */
+    private long cachedBytes = 0;
+
+    /**
+     * Evicted bitmaps go back to the pool for reuse
+     */
+    private final BitmapPool bitmapPool;
+
+    /**
+     * Parts kept in atlas sheets free their slots instead
+     */
+    private final TileAtlas tileAtlas;
+
+    /**
+     * Optional second level cache evicted parts are written to
+     */
+    @Nullable
+    private DiskTileCache diskTileCache;
+
+    /**
+     * Optional registry of parts shared with other views showing the same document
+     */
+    @Nullable
+    private SharedTileCache sharedTileCache;
+
+    /**
+     * Common prefix of disk and shared cache names of parts of the current document
+     */
+    private String tileNamePrefix;
+
+    /**
+     * Document of the named parts, mapping their pages to document pages
+     */
+    private PdfFile pdfFile;
+
+    /**
+     * Maximum number of bytes the thumbnails may occupy, separate from the parts limit
+     */
+    private long maxThumbnailBytes;
+
+    private long thumbnailBytes = 0;
+
+    /**
+     * Limits set by the user, effective limits are lower while memory is trimmed
+     */
+    private long targetCacheBytes;
+
+    private long targetThumbnailBytes;
+
+    private long partHits = 0;
+    private long partMisses = 0;
+    private long partPromotions = 0;
+    private long partEvictions = 0;
+
+    private long thumbnailHits = 0;
+    private long thumbnailMisses = 0;
+    private long thumbnailEvictions = 0;
+
+    public CacheManager(long maxCacheBytes, long maxThumbnailBytes, BitmapPool bitmapPool, TileAtlas tileAtlas) {
+        this.maxCacheBytes = this.targetCacheBytes = maxCacheBytes;
+        this.maxThumbnailBytes = this.targetThumbnailBytes = maxThumbnailBytes;
+        this.bitmapPool = bitmapPool;
+        this.tileAtlas = tileAtlas;
         activeCache = new PriorityQueue<>(CACHE_SIZE, orderComparator);
-        passiveCache = new PriorityQueue<>(CACHE_SIZE, orderComparator);
-        thumbnails = new ArrayList<>();
+        passiveCache = new ArrayDeque<>(CACHE_SIZE);
+        activeParts = new LongHashMap<>(CACHE_SIZE);
+        passiveParts = new LongHashMap<>(CACHE_SIZE);
+        thumbnails = new LinkedHashMap<>(16, 0.75f, true);
     }
 
     public void cachePart(PagePart part) {
+        long partBytes = getBytes(part);
         synchronized (passiveActiveLock) {
+            PagePart old = passiveParts.get(part.getKey());
+            if (old == null) {
+                old = activeParts.get(part.getKey());
+            }
+            if (old != null && part.isDraft() && !old.isDraft()) {
+                // final part is already cached, keep it
+                release(part);
+                return;
+            }
+            if (old != null && passiveParts.remove(part.getKey()) == null) {
+                activeParts.remove(part.getKey());
+                activeCache.remove(old);
+            }
+            if (old != null && old.isDraft()) {
+                // Replace draft in place, it is drawn until the final part is cached
+                cachedBytes -= getBytes(old);
+                release(old);
+            } else if (old != null) {
+                // Same part could have been rendered twice, drop the old one
+                evict(old);
+            }
+
             // If cache too big, remove and recycle
-            makeAFreeSpace();
+            makeAFreeSpace(partBytes);
 
             // Then add part
             activeCache.offer(part);
+            activeParts.put(part.getKey(), part);
+            cachedBytes += partBytes;
+            share(part);
         }
     }
 
+    /**
+     * Write evicted parts to given disk cache and share cached parts with other views,
+     * or stop doing so for caches which are null
+     *
+     * @param tileNamePrefix name prefix of the current document, see {@link DiskTileCache#namePrefix}
+     * @param pdfFile        current document, parts are named by their document page
+     */
+    public void setTileCaches(@Nullable DiskTileCache diskTileCache, @Nullable SharedTileCache sharedTileCache,
+                              @Nullable String tileNamePrefix, @Nullable PdfFile pdfFile) {
+        synchronized (passiveActiveLock) {
+            synchronized (thumbnails) {
+                this.diskTileCache = diskTileCache;
+                this.sharedTileCache = sharedTileCache;
+                this.tileNamePrefix = tileNamePrefix;
+                this.pdfFile = pdfFile;
+            }
+        }
+    }
+
+    public void setMaxCacheBytes(long maxCacheBytes) {
+        synchronized (passiveActiveLock) {
+            this.maxCacheBytes = this.targetCacheBytes = maxCacheBytes;
+            makeAFreeSpace(0);
+        }
+    }
+
+    public long getMaxCacheBytes() {
+        return targetCacheBytes;
+    }
+
+    /**
+     * Recycle passive parts and lower the limit to the remaining parts, but not below given number of bytes
+     */
+    public void trimPassive(long minCacheBytes) {
+        synchronized (passiveActiveLock) {
+            while (!passiveCache.isEmpty()) {
+                PagePart part = passiveCache.poll();
+                if (isPassive(part)) {
+                    passiveParts.remove(part.getKey());
+                    evict(part, false);
+                }
+            }
+            lowerMaxCacheBytes(minCacheBytes);
+        }
+    }
+
+    /**
+     * Recycle active parts which are not visible and lower the limit to the remaining parts,
+     * but not below given number of bytes
+     */
+    public void trimActive(PartFilter visible, long minCacheBytes) {
+        synchronized (passiveActiveLock) {
+            Iterator<PagePart> iterator = activeCache.iterator();
+            while (iterator.hasNext()) {
+                PagePart part = iterator.next();
+                if (!visible.accept(part)) {
+                    iterator.remove();
+                    activeParts.remove(part.getKey());
+                    evict(part, false);
+                }
+            }
+            lowerMaxCacheBytes(minCacheBytes);
+        }
+    }
+
+    private void lowerMaxCacheBytes(long minCacheBytes) {
+        maxCacheBytes = Math.min(maxCacheBytes, Math.max(cachedBytes, minCacheBytes));
+    }
+
+    /**
+     * Recycle thumbnails which are not visible and lower the thumbnails limit to the remaining ones
+     */
+    public void trimThumbnails(PartFilter visible) {
+        synchronized (thumbnails) {
+            Iterator<PagePart> iterator = thumbnails.values().iterator();
+            while (iterator.hasNext()) {
+                PagePart part = iterator.next();
+                if (!visible.accept(part)) {
+                    iterator.remove();
+                    Bitmap bitmap = part.getRenderedBitmap();
+                    thumbnailBytes -= bitmap.getAllocationByteCount();
+                    thumbnailEvictions++;
+                    recycleOrRelease(bitmap);
+                }
+            }
+            maxThumbnailBytes = Math.min(maxThumbnailBytes, thumbnailBytes);
+        }
+    }
+
+    /**
+     * Raise limits lowered by trimming by a step towards the limits set by the user
+     *
+     * @return true if limits are still lower than those set by the user
+     */
+    public boolean growBack() {
+        boolean trimmed;
+        synchronized (passiveActiveLock) {
+            maxCacheBytes = Math.min(targetCacheBytes, maxCacheBytes + targetCacheBytes / TRIM_GROWTH_STEPS);
+            trimmed = maxCacheBytes < targetCacheBytes;
+        }
+        synchronized (thumbnails) {
+            maxThumbnailBytes = Math.min(targetThumbnailBytes,
+                    maxThumbnailBytes + targetThumbnailBytes / TRIM_GROWTH_STEPS);
+            trimmed |= maxThumbnailBytes < targetThumbnailBytes;
+        }
+        return trimmed;
+    }
+
+    public long getCachedBytes() {
+        synchronized (passiveActiveLock) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * Get number of full-size parts rendered with given config which fit into the cache at once
+     */
+    public int getPartsCapacity(Bitmap.Config config) {
+        int bytesPerPixel = config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+        long partBytes = (long) (PART_SIZE * PART_SIZE) * bytesPerPixel;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxCacheBytes / partBytes));
+    }
+
     public void makeANewSet() {
         synchronized (passiveActiveLock) {
-            passiveCache.addAll(activeCache);
+            List<PagePart> parts = new ArrayList<>(passiveParts.size() + activeParts.size());
+            for (PagePart part : passiveCache) {
+                if (isPassive(part)) {
+                    parts.add(part);
+                }
+            }
+            for (PagePart part : activeCache) {
+                parts.add(part);
+                passiveParts.put(part.getKey(), part);
+            }
+            Collections.sort(parts, orderComparator);
+            passiveCache.clear();
+            passiveCache.addAll(parts);
             activeCache.clear();
+            activeParts.clear();
+        }
+    }
+
+    /**
+     * Evict all parts, e.g. because page sizes changed and keys no longer match their bounds
+     */
+    public void invalidateParts() {
+        synchronized (passiveActiveLock) {
+            makeANewSet();
+            while (!passiveCache.isEmpty()) {
+                PagePart part = passiveCache.poll();
+                if (isPassive(part)) {
+                    evict(part);
+                }
+            }
+            passiveParts.clear();
         }
     }
 
-    private void makeAFreeSpace() {
+    /**
+     * Evict parts accepted by the filter, e.g. of pages which changed size, and make the others passive
+     */
+    public void invalidateParts(PartFilter invalid) {
         synchronized (passiveActiveLock) {
-            while ((activeCache.size() + passiveCache.size()) >= CACHE_SIZE &&
+            makeANewSet();
+            Iterator<PagePart> iterator = passiveCache.iterator();
+            while (iterator.hasNext()) {
+                PagePart part = iterator.next();
+                if (!isPassive(part)) {
+                    iterator.remove();
+                } else if (invalid.accept(part)) {
+                    iterator.remove();
+                    passiveParts.remove(part.getKey());
+                    evict(part);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict thumbnail of the page, e.g. because it was rendered for another page size
+     */
+    public void invalidateThumbnail(int page) {
+        synchronized (thumbnails) {
+            PagePart old = thumbnails.remove(page);
+            if (old != null) {
+                thumbnailBytes -= old.getRenderedBitmap().getAllocationByteCount();
+                thumbnailEvictions++;
+                if (releaseShared(old.getRenderedBitmap())) {
+                    bitmapPool.put(old.getRenderedBitmap());
+                }
+            }
+        }
+    }
+
+    private boolean isPassive(PagePart part) {
+        return passiveParts.get(part.getKey()) == part;
+    }
+
+    /**
+     * Evict parts until there is room for given number of bytes, passive parts first
+     */
+    private void makeAFreeSpace(long requiredBytes) {
+        synchronized (passiveActiveLock) {
+            while (cachedBytes + requiredBytes > maxCacheBytes &&
                     !passiveCache.isEmpty()) {
                 PagePart part = passiveCache.poll();
-                part.getRenderedBitmap().recycle();
+                if (isPassive(part)) {
+                    passiveParts.remove(part.getKey());
+                    evict(part);
+                }
             }
 
-            while ((activeCache.size() + passiveCache.size()) >= CACHE_SIZE &&
+            while (cachedBytes + requiredBytes > maxCacheBytes &&
                     !activeCache.isEmpty()) {
-                activeCache.poll().getRenderedBitmap().recycle();
+                PagePart part = activeCache.poll();
+                activeParts.remove(part.getKey());
+                evict(part);
+            }
+        }
+    }
+
+    private void evict(PagePart part) {
+        evict(part, true);
+    }
+
+    /**
+     * @param reuse false to recycle bitmap instead of storing it on disk and in the bitmap pool
+     */
+    private void evict(PagePart part, boolean reuse) {
+        final Bitmap bitmap = part.getRenderedBitmap();
+        cachedBytes -= getBytes(part);
+        partEvictions++;
+        if (part.getSourceRect() != null) {
+            // atlas parts are not shared, a copy of the slot is stored on disk
+            if (reuse && diskTileCache != null && !part.isDraft()) {
+                storeAtlasPart(part);
             }
+            tileAtlas.release(bitmap, part.getSourceRect());
+            return;
+        }
+        if (!releaseShared(bitmap)) {
+            // still drawn by other views
+            return;
+        }
+        if (!reuse) {
+            bitmap.recycle();
+        } else if (diskTileCache != null && !part.isDraft()) {
+            diskTileCache.put(getTileName(part), bitmap, () -> bitmapPool.put(bitmap));
+        } else {
+            bitmapPool.put(bitmap);
         }
     }
 
+    private void storeAtlasPart(PagePart part) {
+        Rect sourceRect = part.getSourceRect();
+        final Bitmap copy;
+        try {
+            copy = bitmapPool.obtain(sourceRect.width(), sourceRect.height(), part.getRenderedBitmap().getConfig());
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        tileAtlas.copyOut(part.getRenderedBitmap(), sourceRect, copy);
+        diskTileCache.put(getTileName(part), copy, () -> bitmapPool.put(copy));
+    }
+
+    /**
+     * Give the bitmap of a part which was not cached back to the pool or the atlas
+     */
+    private void release(PagePart part) {
+        if (part.getSourceRect() != null) {
+            tileAtlas.release(part.getRenderedBitmap(), part.getSourceRect());
+        } else {
+            bitmapPool.put(part.getRenderedBitmap());
+        }
+    }
+
+    private void recycleOrRelease(PagePart part) {
+        if (part.getSourceRect() != null) {
+            tileAtlas.release(part.getRenderedBitmap(), part.getSourceRect());
+        } else {
+            recycleOrRelease(part.getRenderedBitmap());
+        }
+    }
+
+    /**
+     * Get number of bytes taken by the part, only its slot for parts in atlas sheets
+     */
+    private static long getBytes(PagePart part) {
+        Rect sourceRect = part.getSourceRect();
+        if (sourceRect == null) {
+            return part.getRenderedBitmap().getAllocationByteCount();
+        }
+        int bytesPerPixel = part.getRenderedBitmap().getConfig() == Bitmap.Config.ARGB_8888 ? 4 : 2;
+        return (long) sourceRect.width() * sourceRect.height() * bytesPerPixel;
+    }
+
     public void cacheThumbnail(PagePart part) {
+        long partBytes = part.getRenderedBitmap().getAllocationByteCount();
         synchronized (thumbnails) {
-            // If cache too big, remove and recycle
-            if (thumbnails.size() >= THUMBNAILS_CACHE_SIZE) {
-                thumbnails.remove(0).getRenderedBitmap().recycle();
+            // Replace thumbnail of the same page
+            PagePart old = thumbnails.remove(part.getPage());
+            if (old != null) {
+                thumbnailBytes -= old.getRenderedBitmap().getAllocationByteCount();
+                if (releaseShared(old.getRenderedBitmap())) {
+                    bitmapPool.put(old.getRenderedBitmap());
+                }
             }
 
+            // If cache too big, remove least recently used
+            makeAFreeThumbnailSpace(partBytes);
+
             // Then add thumbnail
-            thumbnails.add(part);
+            thumbnails.put(part.getPage(), part);
+            thumbnailBytes += partBytes;
+            share(part);
+        }
+    }
+
+    private void makeAFreeThumbnailSpace(long requiredBytes) {
+        Iterator<PagePart> iterator = thumbnails.values().iterator();
+        while (thumbnailBytes + requiredBytes > maxThumbnailBytes && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next().getRenderedBitmap();
+            iterator.remove();
+            thumbnailBytes -= bitmap.getAllocationByteCount();
+            thumbnailEvictions++;
+            if (releaseShared(bitmap)) {
+                bitmapPool.put(bitmap);
+            }
         }
     }
 
-    public boolean upPartIfContained(int page, RectF pageRelativeBounds, int toOrder) {
-        PagePart fakePart = new PagePart(page, null, pageRelativeBounds, false, 0);
+    private String getTileName(PagePart part) {
+        Bitmap bitmap = part.getRenderedBitmap();
+        Rect sourceRect = part.getSourceRect();
+        int width = sourceRect != null ? sourceRect.width() : bitmap.getWidth();
+        int height = sourceRect != null ? sourceRect.height() : bitmap.getHeight();
+        return DiskTileCache.tileName(tileNamePrefix, pdfFile.documentPage(part.getPage()), part.getPageRelativeBounds(),
+                width, height, bitmap.getConfig());
+    }
+
+    private void share(PagePart part) {
+        if (sharedTileCache != null && !part.isDraft() && part.getSourceRect() == null) {
+            sharedTileCache.publish(getTileName(part), part.getRenderedBitmap());
+        }
+    }
+
+    /**
+     * @return true if bitmap is not used by other views and can be reused or recycled
+     */
+    private boolean releaseShared(Bitmap bitmap) {
+        return sharedTileCache == null || sharedTileCache.release(bitmap);
+    }
+
+    private void recycleOrRelease(Bitmap bitmap) {
+        if (releaseShared(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    public void setMaxThumbnailBytes(long maxThumbnailBytes) {
+        synchronized (thumbnails) {
+            this.maxThumbnailBytes = this.targetThumbnailBytes = maxThumbnailBytes;
+            makeAFreeThumbnailSpace(0);
+        }
+    }
+
+    public long getMaxThumbnailBytes() {
+        return targetThumbnailBytes;
+    }
 
-        PagePart found;
+    /**
+     * Move part with given key to the active set if it is passive
+     *
+     * @return true if part is cached, false also for a draft which still has to be replaced
+     */
+    public boolean upPartIfContained(long key, int toOrder) {
         synchronized (passiveActiveLock) {
-            if ((found = find(passiveCache, fakePart)) != null) {
-                passiveCache.remove(found);
+            PagePart found = passiveParts.remove(key);
+            if (found != null) {
                 found.setCacheOrder(toOrder);
                 activeCache.offer(found);
+                activeParts.put(key, found);
+                partPromotions++;
+            } else {
+                found = activeParts.get(key);
+            }
+            if (found != null && !found.isDraft()) {
+                partHits++;
                 return true;
             }
+            partMisses++;
+            return false;
+        }
+    }
 
-            return find(activeCache, fakePart) != null;
+    /**
+     * Return true if a draft of the part is cached, so only the final part has to be rendered
+     */
+    public boolean containsDraft(long key) {
+        synchronized (passiveActiveLock) {
+            PagePart found = activeParts.get(key);
+            if (found == null) {
+                found = passiveParts.get(key);
+            }
+            return found != null && found.isDraft();
         }
     }
 
     /**
-     * Return true if already contains the described PagePart
+     * Return true if already contains thumbnail of the page, marking it as recently used
      */
-    public boolean containsThumbnail(int page, RectF pageRelativeBounds) {
-        PagePart fakePart = new PagePart(page, null, pageRelativeBounds, true, 0);
+    public boolean containsThumbnail(int page) {
         synchronized (thumbnails) {
-            for (PagePart part : thumbnails) {
-                if (part.equals(fakePart)) {
-                    return true;
-                }
+            if (thumbnails.get(page) != null) {
+                thumbnailHits++;
+                return true;
             }
+            thumbnailMisses++;
             return false;
         }
     }
 
-    @Nullable
-    private static PagePart find(PriorityQueue<PagePart> vector, PagePart fakePart) {
-        for (PagePart part : vector) {
-            if (part.equals(fakePart)) {
-                return part;
-            }
+    public RenderStats.Tier getPartsStats() {
+        synchronized (passiveActiveLock) {
+            return new RenderStats.Tier(partHits, partMisses, partPromotions, partEvictions, cachedBytes);
         }
-        return null;
     }
 
+    public RenderStats.Tier getThumbnailsStats() {
+        synchronized (thumbnails) {
+            return new RenderStats.Tier(thumbnailHits, thumbnailMisses, 0, thumbnailEvictions, thumbnailBytes);
+        }
+    }
+
+    /**
+     * Get parts to draw, passive first so that active parts of the current zoom level are drawn
+     * over parts of other levels still kept as placeholders
+     */
     public List<PagePart> getPageParts() {
         synchronized (passiveActiveLock) {
-            List<PagePart> parts = new ArrayList<>(passiveCache);
+            List<PagePart> parts = new ArrayList<>(passiveParts.size() + activeParts.size());
+            for (PagePart part : passiveCache) {
+                if (isPassive(part)) {
+                    parts.add(part);
+                }
+            }
             parts.addAll(activeCache);
             return parts;
         }
@@ -143,29 +628,39 @@ class CacheManager {
 
     public List<PagePart> getThumbnails() {
         synchronized (thumbnails) {
-            return thumbnails;
+            return new ArrayList<>(thumbnails.values());
         }
     }
 
     public void recycle() {
         synchronized (passiveActiveLock) {
             for (PagePart part : passiveCache) {
-                part.getRenderedBitmap().recycle();
+                if (isPassive(part)) {
+                    recycleOrRelease(part);
+                }
             }
             passiveCache.clear();
+            passiveParts.clear();
             for (PagePart part : activeCache) {
-                part.getRenderedBitmap().recycle();
+                recycleOrRelease(part);
             }
             activeCache.clear();
+            activeParts.clear();
+            cachedBytes = 0;
         }
         synchronized (thumbnails) {
-            for (PagePart part : thumbnails) {
-                part.getRenderedBitmap().recycle();
+            for (PagePart part : thumbnails.values()) {
+                recycleOrRelease(part.getRenderedBitmap());
             }
             thumbnails.clear();
+            thumbnailBytes = 0;
         }
     }
 
+    interface PartFilter {
+        boolean accept(PagePart part);
+    }
+
     class PagePartComparator implements Comparator<PagePart> {
         @Override
         public int compare(PagePart part1, PagePart part2) {
@@ -26,7 +26,7 @@ import com.shockwave.pdfium.util.Size;
 
 import java.lang.ref.WeakReference;
 
-class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
+class DecodingAsyncTask extends AsyncTask<Void, PreviewCache.Preview, Throwable> {
 
     private boolean cancelled;
 
@@ -40,6 +40,7 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
     private int[] userPages;
     private WeakReference<PDFView> pdfViewReference;
     private PdfFile pdfFile;
+    private String previewName;
 
     DecodingAsyncTask(DocumentSource docSource, String password, int[] userPages, PDFView pdfView, PdfiumCore pdfiumSDK) {
         this.docSource = docSource;
@@ -55,10 +56,35 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
         try {
             PDFView pdfView = pdfViewReference.get();
             if (pdfView != null) {
+                String fingerprint = getFingerprint(pdfView);
+                if (fingerprint != null && pdfView.isPreviewCacheEnabled()) {
+                    previewName = PreviewCache.previewName(fingerprint, pdfView.isAnnotationRendering(),
+                            userPages, pdfView.defaultPage);
+                    // show the stored preview while the document is being opened
+                    publishProgress(PreviewCache.getInstance(pdfView.getContext()).get(previewName));
+                }
                 PdfDocument pdfDocument = docSource.createDocument(pdfView.getContext(), pdfiumSDK, password);
+                // rendering threads open their handles later, do not keep the view's context for that
+                Context appContext = pdfView.getContext().getApplicationContext();
+                PdfFile.DocumentFactory documentFactory = PdfiumBinding.getRendersInParallel()
+                        && docSource.canCreateMultipleDocuments()
+                        ? () -> docSource.createDocument(appContext, pdfiumSDK, password)
+                        : null;
+                LayoutCache layoutCache = fingerprint != null && pdfView.isLayoutCacheEnabled()
+                        ? LayoutCache.getInstance(pdfView.getContext()) : null;
+                Size[] cachedPageSizes = layoutCache != null
+                        ? layoutCache.get(LayoutCache.layoutName(fingerprint)) : null;
                 pdfFile = new PdfFile(pdfiumSDK, pdfDocument, pdfView.getPageFitPolicy(), getViewSize(pdfView),
                         userPages, pdfView.isSwipeVertical(), pdfView.getSpacingPx(), pdfView.isAutoSpacingEnabled(),
-                        pdfView.isFitEachPage());
+                        pdfView.isFitEachPage(), fingerprint, documentFactory, pdfView.getRenderThreads(),
+                        cachedPageSizes, pdfView.isLazyLayout(), pdfView.defaultPage);
+                if (layoutCache != null && !pdfFile.isLayoutCached()) {
+                    // lazily measured layouts are stored once complete, see PDFView#onLayoutComplete()
+                    Size[] pageSizes = pdfFile.getDocumentPageSizes();
+                    if (pageSizes != null) {
+                        layoutCache.put(LayoutCache.layoutName(fingerprint), pageSizes);
+                    }
+                }
                 return null;
             } else {
                 return new NullPointerException("pdfView == null");
@@ -70,6 +96,17 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
 
     }
 
+    @Override
+    protected void onProgressUpdate(PreviewCache.Preview... previews) {
+        PDFView pdfView = pdfViewReference.get();
+        // cancelled flag is set only after the background work ends, a new load may be running already
+        if (pdfView != null && !isCancelled()) {
+            pdfView.previewLoaded(previewName, previews[0]);
+        } else if (previews[0] != null) {
+            previews[0].bitmap.recycle();
+        }
+    }
+
     @Override
     protected void onPostExecute(Throwable t) {
         PDFView pdfView = pdfViewReference.get();
@@ -87,6 +124,20 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
         cancelled = true;
     }
 
+    private String getFingerprint(PDFView pdfView) {
+        // computing it may read the whole document, skip it if no cache keyed by it is enabled
+        if (!pdfView.isDiskCacheEnabled() && !pdfView.isSharedCacheEnabled()
+                && !pdfView.isPreviewCacheEnabled() && !pdfView.isLayoutCacheEnabled()) {
+            return null;
+        }
+        try {
+            return docSource.getFingerprint(pdfView.getContext());
+        } catch (Exception e) {
+            // fingerprint only enables caching, document can be shown without it
+            return null;
+        }
+    }
+
     private Size getViewSize(PDFView pdfView) {
         return new Size(pdfView.getWidth(), pdfView.getHeight());
     }
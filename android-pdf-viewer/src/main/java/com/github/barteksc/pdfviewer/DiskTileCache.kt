@@ -0,0 +1,276 @@
+package com.github.barteksc.pdfviewer
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.RectF
+import android.util.Log
+import com.github.barteksc.pdfviewer.util.Constants
+import com.github.barteksc.pdfviewer.util.Util
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Second level cache keeping compressed bitmaps of parts evicted from [CacheManager] on disk,
+ * so scrolling back to a page does not have to render it again.
+ * All disk operations run on a single background thread, the index of stored tiles
+ * is kept in memory and trimmed in least recently used order.
+ */
+class DiskTileCache private constructor(private val directory: File) {
+
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "PDF disk cache").apply { priority = Thread.MIN_PRIORITY }
+    }
+
+    /**
+     * Names of stored tiles with their file sizes, in access order
+     */
+    private val index = LinkedHashMap<String, Long>(64, 0.75f, true)
+
+    /**
+     * Tiles being written or read right now
+     */
+    private val pending = HashSet<String>()
+
+    private var storedBytes = 0L
+
+    /**
+     * Number of tiles waiting to be compressed, their bitmaps are not counted by any memory budget
+     */
+    private var pendingWrites = 0
+
+    @Volatile
+    var maxBytes: Long = Constants.Cache.DISK_CACHE_SIZE
+        set(value) {
+            field = value
+            executor.execute { trimToSize(value) }
+        }
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val evictions = AtomicLong()
+
+    /**
+     * Number of parts found on disk instead of being rendered
+     */
+    val hitCount: Long
+        get() = hits.get()
+
+    /**
+     * Number of parts looked up on disk and rendered because they were not found
+     */
+    val missCount: Long
+        get() = misses.get()
+
+    /**
+     * Number of stored parts removed to stay within [maxBytes]
+     */
+    val evictionCount: Long
+        get() = evictions.get()
+
+    /**
+     * Counters and size of stored files as a [RenderStats] tier
+     */
+    val stats: RenderStats.Tier
+        get() = RenderStats.Tier(hitCount, missCount, 0, evictionCount, synchronized(index) { storedBytes })
+
+    init {
+        executor.execute { readIndex() }
+    }
+
+    /**
+     * Check whether tile is stored, counting the lookup as a miss if it is not.
+     * Does not touch the disk, so it is safe to call on the main thread.
+     */
+    fun contains(name: String): Boolean {
+        val found = synchronized(index) { index.containsKey(name) }
+        if (!found) {
+            misses.incrementAndGet()
+        }
+        return found
+    }
+
+    /**
+     * Compress bitmap to disk in the background. Bitmap must not be modified
+     * until [onStored] is called, on the main thread if tile is already stored
+     * or too many tiles wait to be written, see [Constants.Cache.DISK_CACHE_MAX_PENDING_WRITES],
+     * or on the disk thread otherwise.
+     */
+    fun put(name: String, bitmap: Bitmap, onStored: Runnable) {
+        val skip = synchronized(index) {
+            if (index.containsKey(name) || pendingWrites >= Constants.Cache.DISK_CACHE_MAX_PENDING_WRITES ||
+                !pending.add(name)
+            ) {
+                true
+            } else {
+                pendingWrites++
+                false
+            }
+        }
+        if (skip) {
+            onStored.run()
+            return
+        }
+        executor.execute {
+            try {
+                write(name, bitmap)
+            } finally {
+                synchronized(index) {
+                    pending.remove(name)
+                    pendingWrites--
+                }
+                onStored.run()
+            }
+        }
+    }
+
+    /**
+     * Decode stored tile in the background and pass it to [onLoaded], or null if it cannot be read.
+     * Repeated requests for a tile which is already being read are ignored.
+     */
+    fun get(name: String, config: Bitmap.Config, onLoaded: (Bitmap?) -> Unit) {
+        synchronized(index) {
+            if (!pending.add(name)) {
+                return
+            }
+        }
+        hits.incrementAndGet()
+        executor.execute {
+            val bitmap = read(name, config)
+            synchronized(index) { pending.remove(name) }
+            onLoaded(bitmap)
+        }
+    }
+
+    /**
+     * Remove all stored tiles
+     */
+    fun clear() {
+        executor.execute { trimToSize(0) }
+    }
+
+    private fun readIndex() {
+        val files = directory.listFiles() ?: return
+        files.sortBy { it.lastModified() }
+        synchronized(index) {
+            for (file in files) {
+                if (file.name.endsWith(TMP_SUFFIX)) {
+                    file.delete()
+                    continue
+                }
+                index[file.name] = file.length()
+                storedBytes += file.length()
+            }
+        }
+        trimToSize(maxBytes)
+    }
+
+    private fun write(name: String, bitmap: Bitmap) {
+        if (bitmap.isRecycled || (!directory.exists() && !directory.mkdirs())) {
+            return
+        }
+        val tmp = File(directory, name + TMP_SUFFIX)
+        try {
+            FileOutputStream(tmp).use { bitmap.compress(Bitmap.CompressFormat.PNG, 100, it) }
+            val file = File(directory, name)
+            if (!tmp.renameTo(file)) {
+                tmp.delete()
+                return
+            }
+            synchronized(index) {
+                index[name] = file.length()
+                storedBytes += file.length()
+            }
+            trimToSize(maxBytes)
+        } catch (e: IOException) {
+            Log.e(TAG, "Cannot store tile $name", e)
+            tmp.delete()
+        }
+    }
+
+    private fun read(name: String, config: Bitmap.Config): Bitmap? {
+        val file = File(directory, name)
+        val options = BitmapFactory.Options().apply {
+            inPreferredConfig = config
+            inMutable = true
+        }
+        val bitmap = BitmapFactory.decodeFile(file.path, options)
+        if (bitmap == null) {
+            synchronized(index) {
+                index.remove(name)?.let { storedBytes -= it }
+            }
+            file.delete()
+        } else {
+            file.setLastModified(System.currentTimeMillis())
+        }
+        return bitmap
+    }
+
+    private fun trimToSize(bytes: Long) {
+        while (true) {
+            val name = synchronized(index) {
+                if (storedBytes <= bytes || index.isEmpty()) {
+                    return
+                }
+                val eldest = index.entries.iterator().next()
+                index.remove(eldest.key)
+                storedBytes -= eldest.value
+                evictions.incrementAndGet()
+                eldest.key
+            }
+            File(directory, name).delete()
+        }
+    }
+
+    companion object {
+        private val TAG = DiskTileCache::class.java.simpleName
+        private const val DIRECTORY = "pdfview-tiles"
+        private const val TMP_SUFFIX = ".tmp"
+
+        @Volatile
+        private var instance: DiskTileCache? = null
+
+        /**
+         * Disk cache is shared by all views of the process, because they share the directory
+         */
+        @JvmStatic
+        fun getInstance(context: Context): DiskTileCache {
+            return instance ?: synchronized(this) {
+                instance ?: DiskTileCache(File(context.cacheDir, DIRECTORY)).also { instance = it }
+            }
+        }
+
+        /**
+         * Common part of tile names of one document rendered with given options
+         */
+        @JvmStatic
+        fun namePrefix(fingerprint: String, annotationRendering: Boolean): String {
+            return Util.sha1Hex(fingerprint) + if (annotationRendering) "-a" else "-n"
+        }
+
+        /**
+         * Name of a tile of given document page, not of the page index in the view,
+         * which differs between views showing different pages of the document
+         */
+        @JvmStatic
+        fun tileName(
+            prefix: String,
+            documentPage: Int,
+            bounds: RectF,
+            width: Int,
+            height: Int,
+            config: Bitmap.Config
+        ): String {
+            return prefix + "-" + documentPage +
+                    "-" + Integer.toHexString(java.lang.Float.floatToIntBits(bounds.left)) +
+                    "-" + Integer.toHexString(java.lang.Float.floatToIntBits(bounds.top)) +
+                    "-" + Integer.toHexString(java.lang.Float.floatToIntBits(bounds.right)) +
+                    "-" + Integer.toHexString(java.lang.Float.floatToIntBits(bounds.bottom)) +
+                    "-" + width + "x" + height + "-" + config.ordinal
+        }
+    }
+}
@@ -39,6 +39,20 @@ internal class DragPinchManager(
     private val gestureDetector: GestureDetector
     private val scaleGestureDetector: ScaleGestureDetector
     private var scrolling = false
+
+    /**
+     * True while the view is being dragged by the user
+     */
+    val isScrolling: Boolean
+        get() = scrolling
+
+    /**
+     * Position of the last touch on the view, the point held by the user while scrolling
+     */
+    var lastTouchX = 0f
+        private set
+    var lastTouchY = 0f
+        private set
     private var scaling = false
     private var enabledScrollingAndZooming = true
 
@@ -119,6 +133,8 @@ internal class DragPinchManager(
     }
 
     override fun onDown(e: MotionEvent): Boolean {
+        lastTouchX = e.x
+        lastTouchY = e.y
         animationManager.stopFling()
         return true
     }
@@ -135,6 +151,8 @@ internal class DragPinchManager(
         distanceY: Float
     ): Boolean {
         scrolling = true
+        lastTouchX = e2.x
+        lastTouchY = e2.y
         if (pdfView.isZooming || pdfView.isSwipeEnabled) {
             pdfView.moveRelativeTo(-distanceX, -distanceY)
         }
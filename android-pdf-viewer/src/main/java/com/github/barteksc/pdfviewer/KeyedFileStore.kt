@@ -0,0 +1,123 @@
+package com.github.barteksc.pdfviewer
+
+import android.util.Log
+import androidx.annotation.WorkerThread
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Directory of small files named by key, each starting with a format version, used by
+ * [PreviewCache] and [LayoutCache]. Files are written on a single background thread
+ * through a temporary file and trimmed by count in least recently used order.
+ */
+internal class KeyedFileStore(
+    private val directory: File,
+    threadName: String,
+    private val version: Int,
+    /**
+     * Maximum number of files kept, read whenever a file is written
+     */
+    private val maxCount: () -> Int
+) {
+
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, threadName).apply { priority = Thread.MIN_PRIORITY }
+    }
+
+    /**
+     * Read stored file, blocking the calling thread. Files of another version,
+     * or which the reader rejects by returning null, are deleted
+     *
+     * @param reader reads the content after the version, gets the length of the whole file
+     * @return value read or null if there is none or it cannot be read
+     */
+    @WorkerThread
+    fun <T> read(name: String, reader: (input: DataInputStream, fileLength: Long) -> T?): T? {
+        val file = File(directory, name)
+        if (!file.exists()) {
+            return null
+        }
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                val value = if (input.readInt() == version) reader(input, file.length()) else null
+                if (value == null) {
+                    file.delete()
+                    return null
+                }
+                file.setLastModified(System.currentTimeMillis())
+                return value
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Cannot read $name from $directory", e)
+            file.delete()
+            return null
+        }
+    }
+
+    /**
+     * Write file in the background and trim the directory to [maxCount] files
+     *
+     * @param done called on the background thread once the file is written or writing failed
+     * @param writer writes the content after the version
+     */
+    fun write(name: String, done: (() -> Unit)? = null, writer: (output: DataOutputStream) -> Unit) {
+        executor.execute {
+            try {
+                writeFile(name, writer)
+                trimToCount(maxCount())
+            } finally {
+                done?.invoke()
+            }
+        }
+    }
+
+    /**
+     * Remove all stored files
+     */
+    fun clear() {
+        executor.execute { trimToCount(0) }
+    }
+
+    private fun writeFile(name: String, writer: (output: DataOutputStream) -> Unit) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return
+        }
+        val tmp = File(directory, name + TMP_SUFFIX)
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { output ->
+                output.writeInt(version)
+                writer(output)
+            }
+            if (!tmp.renameTo(File(directory, name))) {
+                tmp.delete()
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Cannot store $name to $directory", e)
+            tmp.delete()
+        }
+    }
+
+    private fun trimToCount(count: Int) {
+        val files = directory.listFiles() ?: return
+        if (files.size <= count) {
+            return
+        }
+        files.sortByDescending { it.lastModified() }
+        for (i in count until files.size) {
+            files[i].delete()
+        }
+    }
+
+    companion object {
+        private val TAG = KeyedFileStore::class.java.simpleName
+        private const val TMP_SUFFIX = ".tmp"
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.barteksc.pdfviewer;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of render durations with buckets growing in powers of two milliseconds,
+ * from under 1 ms up to 1024 ms and more.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 12;
+
+    private final long[] counts;
+
+    private long totalNanos;
+
+    private long maxNanos;
+
+    LatencyHistogram() {
+        counts = new long[BUCKETS];
+    }
+
+    private LatencyHistogram(LatencyHistogram other) {
+        counts = Arrays.copyOf(other.counts, BUCKETS);
+        totalNanos = other.totalNanos;
+        maxNanos = other.maxNanos;
+    }
+
+    synchronized void record(long nanos) {
+        long millis = nanos / 1_000_000;
+        int bucket = millis == 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        counts[Math.min(bucket, BUCKETS - 1)]++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    synchronized LatencyHistogram copy() {
+        return new LatencyHistogram(this);
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * @return exclusive upper bound of the bucket in milliseconds, {@link Long#MAX_VALUE} for the last one
+     */
+    public long getBucketUpperBoundMillis(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public synchronized long getCountInBucket(int bucket) {
+        return counts[bucket];
+    }
+
+    public synchronized long getCount() {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        return count;
+    }
+
+    public synchronized float getAverageMillis() {
+        long count = getCount();
+        return count == 0 ? 0 : totalNanos / 1_000_000f / count;
+    }
+
+    public synchronized float getMaxMillis() {
+        return maxNanos / 1_000_000f;
+    }
+
+    /**
+     * Upper bound of the bucket containing given percentile, e.g. 0.9 for 90th percentile
+     *
+     * @return bound in milliseconds, or 0 if nothing was recorded
+     */
+    public synchronized long getPercentileMillis(float percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return getBucketUpperBoundMillis(i);
+            }
+        }
+        return getBucketUpperBoundMillis(BUCKETS - 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LatencyHistogram{" +
+                "count=" + getCount() +
+                ", averageMillis=" + getAverageMillis() +
+                ", maxMillis=" + getMaxMillis() +
+                ", buckets=" + Arrays.toString(counts) +
+                '}';
+    }
+}
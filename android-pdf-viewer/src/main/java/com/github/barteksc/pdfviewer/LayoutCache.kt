@@ -0,0 +1,86 @@
+package com.github.barteksc.pdfviewer
+
+import android.content.Context
+import androidx.annotation.WorkerThread
+import com.github.barteksc.pdfviewer.util.Constants
+import com.github.barteksc.pdfviewer.util.Util
+import com.shockwave.pdfium.util.Size
+import java.io.File
+
+/**
+ * Keeps measured page sizes of recently opened documents, so reopening a document
+ * does not query the size of every page from pdfium.
+ * Each document is a single file of page widths and heights in a [KeyedFileStore],
+ * trimmed by count in least recently used order.
+ */
+class LayoutCache private constructor(directory: File) {
+
+    private val store = KeyedFileStore(directory, "PDF layout cache", VERSION) {
+        Constants.Cache.LAYOUT_CACHE_SIZE
+    }
+
+    /**
+     * Read stored page sizes, blocking the calling thread
+     *
+     * @return sizes of all pages of the document or null if they are not stored or cannot be read
+     */
+    @WorkerThread
+    fun get(name: String): Array<Size>? {
+        return store.read(name) { input, fileLength ->
+            val count = input.readInt()
+            if (count < 0 || fileLength != HEADER_BYTES + count * 8L) {
+                null
+            } else {
+                Array(count) { Size(input.readInt(), input.readInt()) }
+            }
+        }
+    }
+
+    /**
+     * Store page sizes in the background
+     */
+    fun put(name: String, sizes: Array<Size>) {
+        store.write(name) { output ->
+            output.writeInt(sizes.size)
+            for (size in sizes) {
+                output.writeInt(size.width)
+                output.writeInt(size.height)
+            }
+        }
+    }
+
+    /**
+     * Remove all stored layouts
+     */
+    fun clear() {
+        store.clear()
+    }
+
+    companion object {
+        private const val DIRECTORY = "pdfview-layouts"
+        private const val VERSION = 1
+
+        /**
+         * Version and page count, followed by width and height of every page
+         */
+        private const val HEADER_BYTES = 8L
+
+        @Volatile
+        private var instance: LayoutCache? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): LayoutCache {
+            return instance ?: synchronized(this) {
+                instance ?: LayoutCache(File(context.cacheDir, DIRECTORY)).also { instance = it }
+            }
+        }
+
+        /**
+         * Name of the layout of a document, page sizes do not depend on any view options
+         */
+        @JvmStatic
+        fun layoutName(fingerprint: String): String {
+            return Util.sha1Hex(fingerprint)
+        }
+    }
+}
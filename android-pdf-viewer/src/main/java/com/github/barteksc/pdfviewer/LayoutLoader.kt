@@ -0,0 +1,78 @@
+package com.github.barteksc.pdfviewer
+
+import android.os.Process
+import android.util.Log
+import com.github.barteksc.pdfviewer.util.Constants
+import com.shockwave.pdfium.util.Size
+import java.util.concurrent.Executors
+
+/**
+ * Measures pages whose sizes [PdfFile] only estimated in lazy layout mode, in batches on a background thread,
+ * pages nearest to the current one first. Measured sizes are applied by [PDFView.onPageSizesMeasured]
+ * on the main thread, one batch at a time.
+ */
+internal class LayoutLoader(private val pdfView: PDFView, private val pdfFile: PdfFile) {
+
+    private val executor = Executors.newSingleThreadExecutor { runnable ->
+        Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, THREAD_NAME)
+    }
+
+    /**
+     * Changed only on the main thread
+     */
+    private var running = false
+
+    fun start() {
+        running = true
+        measureNext()
+    }
+
+    fun stop() {
+        running = false
+        executor.shutdownNow()
+    }
+
+    private fun measureNext() {
+        if (!running) {
+            return
+        }
+        if (pdfFile.isLayoutComplete) {
+            executor.shutdown()
+            pdfView.onLayoutComplete()
+            return
+        }
+        val pages = pdfFile.nextUnmeasuredPages(pdfView.currentPage, Constants.Layout.MEASURE_BATCH)
+        executor.execute {
+            val sizes = try {
+                pdfFile.measurePageSizes(pages)
+            } catch (e: Exception) {
+                // pages keep their estimated sizes
+                Log.e(TAG, "Cannot measure pages", e)
+                null
+            }
+            if (sizes != null) {
+                pdfView.post { apply(pages, sizes) }
+            }
+        }
+    }
+
+    private fun apply(pages: IntArray, sizes: Array<Size>) {
+        if (!running) {
+            return
+        }
+        if (!pdfView.onPageSizesMeasured(pages, sizes)) {
+            // offsets cannot be shifted under a running animation
+            pdfView.postDelayed({ apply(pages, sizes) }, Constants.Layout.APPLY_RETRY_DELAY)
+            return
+        }
+        measureNext()
+    }
+
+    companion object {
+        private const val THREAD_NAME = "PDF layout"
+        private val TAG = LayoutLoader::class.java.simpleName
+    }
+}
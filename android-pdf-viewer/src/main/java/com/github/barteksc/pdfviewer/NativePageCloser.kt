@@ -0,0 +1,67 @@
+package com.github.barteksc.pdfviewer
+
+import android.util.Log
+import com.shockwave.pdfium.PdfDocument
+import com.shockwave.pdfium.PdfiumCore
+import java.lang.reflect.Field
+import java.lang.reflect.Method
+
+/**
+ * Closes single native pages of a [PdfDocument]. [PdfiumCore] closes pages only together with
+ * their document, so this uses its private page close call and page table, looked up once.
+ * They are kept in minified apps by the consumer rules of this library. If the binding does not have them,
+ * [isAvailable] is false, which is logged once, and pages stay open until their document is closed.
+ */
+internal object NativePageCloser {
+
+    private val TAG = NativePageCloser::class.java.simpleName
+
+    private var closePage: Method? = null
+
+    private var pagePointers: Field? = null
+
+    /**
+     * Lock of [PdfiumCore] guarding its native calls and page tables
+     */
+    private var lock: Any? = null
+
+    init {
+        try {
+            val closePage = PdfiumCore::class.java.getDeclaredMethod("nativeClosePage", Long::class.javaPrimitiveType)
+            val pagePointers = PdfDocument::class.java.getDeclaredField("mNativePagesPtr")
+            val lockField = PdfiumCore::class.java.getDeclaredField("lock")
+            closePage.isAccessible = true
+            pagePointers.isAccessible = true
+            lockField.isAccessible = true
+            lock = lockField.get(null)
+            this.closePage = closePage
+            this.pagePointers = pagePointers
+        } catch (e: Exception) {
+            Log.w(TAG, "Pages cannot be closed one by one, they stay open until the document is closed", e)
+        }
+    }
+
+    val isAvailable: Boolean
+        get() = closePage != null
+
+    /**
+     * Close page of given document, the caller must make sure no other thread uses the page
+     *
+     * @return false if the page could not be closed
+     */
+    fun close(pdfiumCore: PdfiumCore, document: PdfDocument, docPage: Int): Boolean {
+        val closePage = this.closePage ?: return false
+        try {
+            synchronized(lock!!) {
+                @Suppress("UNCHECKED_CAST")
+                val pointers = pagePointers!!.get(document) as MutableMap<Int, Long>
+                val pointer = pointers.remove(docPage) ?: return true
+                closePage.invoke(pdfiumCore, pointer)
+                return true
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Cannot close page $docPage", e)
+            return false
+        }
+    }
+}
@@ -15,7 +15,9 @@
  */
 package com.github.barteksc.pdfviewer;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -31,13 +33,16 @@ import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Build;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.widget.RelativeLayout;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import com.github.barteksc.pdfviewer.exception.PageRenderingException;
 import com.github.barteksc.pdfviewer.link.CustomOnTapListener;
 import com.github.barteksc.pdfviewer.listener.Callbacks;
@@ -50,6 +55,7 @@ import com.github.barteksc.pdfviewer.listener.OnPageChangeListener;
 import com.github.barteksc.pdfviewer.listener.OnPageErrorListener;
 import com.github.barteksc.pdfviewer.listener.OnPageScrollListener;
 import com.github.barteksc.pdfviewer.listener.OnRenderListener;
+import com.github.barteksc.pdfviewer.listener.OnRenderStatsListener;
 import com.github.barteksc.pdfviewer.listener.OnTapListener;
 import com.github.barteksc.pdfviewer.model.PagePart;
 import com.github.barteksc.pdfviewer.scroll.ScrollHandle;
@@ -72,6 +78,7 @@ import com.shockwave.pdfium.util.SizeF;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -119,11 +126,76 @@ public class PDFView extends RelativeLayout {
 
     private ScrollDir scrollDir = ScrollDir.NONE;
 
+    /**
+     * Smoothed velocity of scrolling towards the end of the document in pixels per second,
+     * measured by {@link #moveTo(float, float, boolean)}
+     */
+    private float scrollVelocity = 0;
+
+    /**
+     * Time of the last change of offsets, from {@link SystemClock#uptimeMillis()}
+     */
+    private long lastMoveTime = 0;
+
     /**
      * Rendered parts go to the cache manager
      */
     CacheManager cacheManager;
 
+    /**
+     * Bitmaps of evicted parts waiting to be reused by the rendering handler
+     */
+    BitmapPool bitmapPool;
+
+    /**
+     * Sheets parts are rendered into when the tile atlas is enabled
+     */
+    TileAtlas tileAtlas;
+
+    /**
+     * Second level cache of evicted parts, null if disabled or document has no fingerprint
+     */
+    DiskTileCache diskTileCache;
+
+    /**
+     * Rendering queue counters and render durations, for {@link #getRenderStats()}
+     */
+    final RenderMetrics renderMetrics = new RenderMetrics();
+
+    /**
+     * Time of the last call of {@code OnRenderStatsListener}
+     */
+    private long lastRenderStatsTime = 0;
+
+    /**
+     * Parts rendered in the background, waiting to be cached on the next frame. Guarded by itself
+     */
+    private final ArrayDeque<PagePart> renderedParts = new ArrayDeque<>();
+
+    /**
+     * True if {@link #applyRenderedPartsCallback} is posted, guarded by {@link #renderedParts}
+     */
+    private boolean renderedPartsScheduled = false;
+
+    private Choreographer choreographer;
+
+    private final Choreographer.FrameCallback applyRenderedPartsCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            applyRenderedParts();
+        }
+    };
+
+    /**
+     * Parts shared with other views showing the same document, null if disabled or document has no fingerprint
+     */
+    SharedTileCache sharedTileCache;
+
+    /**
+     * Prefix of disk and shared cache names of parts of the current document
+     */
+    String tileNamePrefix;
+
     /**
      * Animation manager manage all offset and zoom animation
      */
@@ -176,13 +248,14 @@ public class PDFView extends RelativeLayout {
     private DecodingAsyncTask decodingAsyncTask;
 
     /**
-     * The thread {@link #renderingHandler} will run on
+     * Pool of background threads rendering tasks
      */
-    private HandlerThread renderingHandlerThread;
+    volatile RenderingHandler renderingHandler;
+
     /**
-     * Handler always waiting in the background and rendering tasks
+     * Measures pages with estimated sizes in lazy layout mode, null once all pages are measured
      */
-    RenderingHandler renderingHandler;
+    private LayoutLoader layoutLoader;
 
     private PagesLoader pagesLoader;
 
@@ -198,6 +271,13 @@ public class PDFView extends RelativeLayout {
      */
     private Paint debugPaint;
 
+    /**
+     * Rectangles reused by {@link #drawPart(Canvas, PagePart)}, which runs for every cached part on each frame
+     */
+    private final Rect srcRect = new Rect();
+
+    private final RectF dstRect = new RectF();
+
     /**
      * Policy for fitting pages to screen
      */
@@ -253,6 +333,61 @@ public class PDFView extends RelativeLayout {
      */
     private boolean renderDuringScale = false;
 
+    /**
+     * True if evicted parts should be stored in {@link DiskTileCache}
+     */
+    private boolean diskCacheEnabled = false;
+
+    /**
+     * Share rendered parts with other views showing the same document
+     */
+    private boolean sharedCacheEnabled = false;
+
+    /**
+     * Show a stored preview of the first page while the document is being decoded
+     */
+    private boolean previewCacheEnabled = false;
+
+    /**
+     * Store measured page sizes in {@link LayoutCache} and reuse them on the next load of the document
+     */
+    private boolean layoutCacheEnabled = false;
+
+    /**
+     * Number of threads rendering parts
+     */
+    private int renderThreads = Constants.RENDER_THREADS;
+
+    /**
+     * Render visible parts as low resolution drafts first, then replace them with final parts
+     */
+    private boolean progressiveRendering = false;
+
+    /**
+     * Render parts into slots of shared sheets of {@link TileAtlas} instead of separate bitmaps
+     */
+    private boolean tileAtlasEnabled = false;
+
+    /**
+     * Show large documents after measuring a sample of pages, measure the others in the background
+     */
+    private boolean lazyLayout = false;
+
+    /**
+     * Name of the preview of the loaded document, null if previews are disabled or not supported
+     */
+    private String previewName;
+
+    /**
+     * Stored preview drawn until the thumbnail of its page is rendered
+     */
+    private PreviewCache.Preview preview;
+
+    /**
+     * Layout of the first shown page, kept until its thumbnail can be stored as a new preview
+     */
+    private PreviewCache.Layout pendingPreviewLayout;
+
     /**
      * Antialiasing and bitmap filtering
      */
@@ -290,19 +425,53 @@ public class PDFView extends RelativeLayout {
      */
     private Configurator waitingDocumentConfigurator;
 
+    /**
+     * Trims caches when the system runs low on memory
+     */
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    };
+
+    /**
+     * Raises cache limits lowered by {@link #trimMemory(int)} step by step
+     */
+    private final Runnable growCacheRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (cacheManager.growBack()) {
+                postDelayed(this, Constants.Cache.TRIM_GROWTH_INTERVAL);
+            }
+        }
+    };
+
     /**
      * Construct the initial view
      */
     public PDFView(Context context, AttributeSet set) {
         super(context, set);
 
-        renderingHandlerThread = new HandlerThread("PDF renderer");
-
         if (isInEditMode()) {
             return;
         }
 
-        cacheManager = new CacheManager();
+        choreographer = Choreographer.getInstance();
+        long memoryClassBytes = Util.getMemoryClassBytes(context);
+        bitmapPool = new BitmapPool((long) (memoryClassBytes * Constants.Cache.BITMAP_POOL_MEMORY_FRACTION));
+        tileAtlas = new TileAtlas(MathUtils.ceil(Constants.PART_SIZE), Constants.Cache.ATLAS_SHEET_SIZE);
+        cacheManager = new CacheManager(getDefaultMaxCacheBytes(),
+                (long) (memoryClassBytes * Constants.Cache.THUMBNAILS_MEMORY_FRACTION), bitmapPool, tileAtlas);
         animationManager = new AnimationManager(this);
         dragPinchManager = new DragPinchManager(this, animationManager);
         pagesLoader = new PagesLoader(this);
@@ -372,6 +541,7 @@ public class PDFView extends RelativeLayout {
         // difference between UserPages and DocumentPages
         pageNb = pdfFile.determineValidPageNumberFrom(pageNb);
         currentPage = pageNb;
+        pdfFile.setCurrentPage(pageNb);
 
         loadPages();
 
@@ -471,25 +641,46 @@ public class PDFView extends RelativeLayout {
         // Stop tasks
         if (renderingHandler != null) {
             renderingHandler.stop();
-            renderingHandler.removeMessages(RenderingHandler.MSG_RENDER_TASK);
         }
         if (decodingAsyncTask != null) {
             decodingAsyncTask.cancel(true);
         }
 
         // Clear caches
+        dropPreview();
+        previewName = null;
+        pendingPreviewLayout = null;
+        // release shared parts before detaching from the shared cache
         cacheManager.recycle();
+        cacheManager.setTileCaches(null, null, null, null);
+        diskTileCache = null;
+        sharedTileCache = null;
+        tileNamePrefix = null;
+        bitmapPool.clear();
+        tileAtlas.clear();
 
         if (scrollHandle != null && isScrollHandleInit) {
             scrollHandle.destroyLayout();
         }
 
+        if (layoutLoader != null) {
+            layoutLoader.stop();
+            layoutLoader = null;
+        }
+
         if (pdfFile != null) {
             pdfFile.dispose();
             pdfFile = null;
         }
 
         renderingHandler = null;
+        synchronized (renderedParts) {
+            // parts of the closed document, posted before rendering stopped
+            for (PagePart part : renderedParts) {
+                recyclePart(part);
+            }
+            renderedParts.clear();
+        }
         scrollHandle = null;
         isScrollHandleInit = false;
         currentXOffset = currentYOffset = 0;
@@ -515,17 +706,21 @@ public class PDFView extends RelativeLayout {
         animationManager.computeFling();
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (!isInEditMode()) {
+            getContext().getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+        }
+    }
+
     @Override
     protected void onDetachedFromWindow() {
-        recycle();
-        if (renderingHandlerThread != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-                renderingHandlerThread.quitSafely();
-            } else {
-                renderingHandlerThread.quit();
-            }
-            renderingHandlerThread = null;
+        if (!isInEditMode()) {
+            getContext().getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
         }
+        removeCallbacks(growCacheRunnable);
+        recycle();
         super.onDetachedFromWindow();
     }
 
@@ -556,6 +751,7 @@ public class PDFView extends RelativeLayout {
 
         animationManager.stopAll();
         pdfFile.recalculatePageSizes(new Size(w, h));
+        cacheManager.invalidateParts();
 
         if (swipeVertical) {
             currentXOffset = -relativeCenterPointInStripXOffset * pdfFile.getMaxPageWidth() + w * 0.5f;
@@ -663,6 +859,8 @@ public class PDFView extends RelativeLayout {
             return;
         }
 
+        drawPreview(canvas);
+
         if (state != State.SHOWN) {
             return;
         }
@@ -719,6 +917,31 @@ public class PDFView extends RelativeLayout {
         }
     }
 
+    /**
+     * Draw the stored preview at the place its page had when it was stored,
+     * following the current offsets and zoom once the document is loaded
+     */
+    private void drawPreview(Canvas canvas) {
+        if (preview == null || preview.bitmap.isRecycled()) {
+            return;
+        }
+        PreviewCache.Layout layout = preview.layout;
+        float x, y, scale;
+        if (pdfFile == null) {
+            x = layout.xOffset;
+            y = layout.yOffset;
+            scale = 1;
+        } else {
+            x = currentXOffset;
+            y = currentYOffset;
+            scale = zoom / layout.zoom;
+        }
+        RectF bounds = layout.pageBounds;
+        dstRect.set(x + bounds.left * scale, y + bounds.top * scale,
+                x + bounds.right * scale, y + bounds.bottom * scale);
+        canvas.drawBitmap(preview.bitmap, null, dstRect, paint);
+    }
+
     /**
      * Draw a given PagePart on the canvas
      */
@@ -745,10 +968,6 @@ public class PDFView extends RelativeLayout {
             float maxHeight = pdfFile.getMaxPageHeight();
             localTranslationY = toCurrentScale(maxHeight - size.getHeight()) / 2;
         }
-        canvas.translate(localTranslationX, localTranslationY);
-
-        Rect srcRect = new Rect(0, 0, renderedBitmap.getWidth(),
-                renderedBitmap.getHeight());
 
         float offsetX = toCurrentScale(pageRelativeBounds.left * size.getWidth());
         float offsetY = toCurrentScale(pageRelativeBounds.top * size.getHeight());
@@ -758,19 +977,28 @@ public class PDFView extends RelativeLayout {
         // If we use float values for this rectangle, there will be
         // a possible gap between page parts, especially when
         // the zoom level is high.
-        RectF dstRect = new RectF((int) offsetX, (int) offsetY,
-                (int) (offsetX + width),
-                (int) (offsetY + height));
+        int left = (int) offsetX;
+        int top = (int) offsetY;
+        int right = (int) (offsetX + width);
+        int bottom = (int) (offsetY + height);
 
-        // Check if bitmap is in the screen
+        // Check if bitmap is in the screen before touching the canvas,
+        // many thumbnails can be cached while only few of them are visible
         float translationX = currentXOffset + localTranslationX;
         float translationY = currentYOffset + localTranslationY;
-        if (translationX + dstRect.left >= getWidth() || translationX + dstRect.right <= 0 ||
-                translationY + dstRect.top >= getHeight() || translationY + dstRect.bottom <= 0) {
-            canvas.translate(-localTranslationX, -localTranslationY);
+        if (translationX + left >= getWidth() || translationX + right <= 0 ||
+                translationY + top >= getHeight() || translationY + bottom <= 0) {
             return;
         }
 
+        canvas.translate(localTranslationX, localTranslationY);
+
+        if (part.getSourceRect() != null) {
+            srcRect.set(part.getSourceRect());
+        } else {
+            srcRect.set(0, 0, renderedBitmap.getWidth(), renderedBitmap.getHeight());
+        }
+        dstRect.set(left, top, right, bottom);
         canvas.drawBitmap(renderedBitmap, srcRect, dstRect, paint);
 
         if (Constants.DEBUG_MODE) {
@@ -793,11 +1021,12 @@ public class PDFView extends RelativeLayout {
             return;
         }
 
-        // Cancel all current tasks
-        renderingHandler.removeMessages(RenderingHandler.MSG_RENDER_TASK);
+        // Tasks which are not requested again are cancelled, the others keep their place
+        renderingHandler.startPass();
         cacheManager.makeANewSet();
 
         pagesLoader.loadPages();
+        renderingHandler.cancelUnrequested();
         redraw();
     }
 
@@ -809,12 +1038,20 @@ public class PDFView extends RelativeLayout {
 
         this.pdfFile = pdfFile;
 
-        if (!renderingHandlerThread.isAlive()) {
-            renderingHandlerThread.start();
-        }
-        renderingHandler = new RenderingHandler(renderingHandlerThread.getLooper(), this);
+        renderingHandler = new RenderingHandler(this, renderThreads);
         renderingHandler.start();
 
+        if ((diskCacheEnabled || sharedCacheEnabled) && pdfFile.getFingerprint() != null) {
+            tileNamePrefix = DiskTileCache.namePrefix(pdfFile.getFingerprint(), annotationRendering);
+            if (diskCacheEnabled) {
+                diskTileCache = DiskTileCache.getInstance(getContext());
+            }
+            if (sharedCacheEnabled) {
+                sharedTileCache = SharedTileCache.getInstance();
+            }
+            cacheManager.setTileCaches(diskTileCache, sharedTileCache, tileNamePrefix, pdfFile);
+        }
+
         if (scrollHandle != null) {
             scrollHandle.setupLayout(this);
             isScrollHandleInit = true;
@@ -825,6 +1062,136 @@ public class PDFView extends RelativeLayout {
         callbacks.callOnLoadComplete(pdfFile.getPagesCount());
 
         jumpTo(defaultPage, false);
+
+        if (!pdfFile.isLayoutComplete()) {
+            layoutLoader = new LayoutLoader(this, pdfFile);
+            layoutLoader.start();
+        }
+
+        if (previewName != null) {
+            PreviewCache.Layout layout = getPreviewLayout(currentPage);
+            if (preview != null && !preview.layout.matches(layout)) {
+                dropPreview();
+            }
+            if (preview == null) {
+                pendingPreviewLayout = layout;
+            }
+        }
+    }
+
+    /**
+     * Apply page sizes measured by {@link LayoutLoader} in place of estimated ones. The page under the finger,
+     * or in the center of the view, stays at the same place on the screen while other pages move.
+     *
+     * @return false if sizes cannot be applied now because an animation moves the view
+     */
+    boolean onPageSizesMeasured(int[] pages, Size[] sizes) {
+        if (pdfFile == null) {
+            return true;
+        }
+        if (animationManager.isAnimating()) {
+            return false;
+        }
+        float focus;
+        float offset;
+        if (swipeVertical) {
+            focus = dragPinchManager.isScrolling() ? dragPinchManager.getLastTouchY() : getHeight() / 2f;
+            offset = currentYOffset;
+        } else {
+            focus = dragPinchManager.isScrolling() ? dragPinchManager.getLastTouchX() : getWidth() / 2f;
+            offset = currentXOffset;
+        }
+        int anchorPage = pdfFile.getPageAtOffset(focus - offset, zoom);
+        float anchorOffset = pdfFile.getPageOffset(anchorPage, zoom);
+
+        final boolean[] resized = pdfFile.applyPageSizes(pages, sizes, new Size(getWidth(), getHeight()));
+        if (resized == null) {
+            // estimates were right
+            return true;
+        }
+        cacheManager.invalidateParts(part -> resized[part.getPage()]);
+        for (int page : pages) {
+            if (resized[page]) {
+                cacheManager.invalidateThumbnail(page);
+            }
+        }
+
+        // shift before moving, so that the jump does not count as scroll velocity
+        float shift = pdfFile.getPageOffset(anchorPage, zoom) - anchorOffset;
+        if (swipeVertical) {
+            currentYOffset -= shift;
+        } else {
+            currentXOffset -= shift;
+        }
+        moveTo(currentXOffset, currentYOffset);
+        loadPageByOffset();
+        return true;
+    }
+
+    /**
+     * Called by {@link LayoutLoader} once sizes of all pages are measured
+     */
+    void onLayoutComplete() {
+        layoutLoader = null;
+        if (layoutCacheEnabled && pdfFile != null && pdfFile.getFingerprint() != null) {
+            Size[] pageSizes = pdfFile.getDocumentPageSizes();
+            if (pageSizes != null) {
+                LayoutCache.getInstance(getContext()).put(LayoutCache.layoutName(pdfFile.getFingerprint()), pageSizes);
+            }
+        }
+    }
+
+    /**
+     * Called from the decoding task, before the document is opened
+     *
+     * @param name    name of the preview of the document being loaded
+     * @param preview stored preview or null if there is none
+     */
+    void previewLoaded(String name, @Nullable PreviewCache.Preview preview) {
+        if (recycled || state != State.DEFAULT) {
+            if (preview != null) {
+                preview.bitmap.recycle();
+            }
+            return;
+        }
+        previewName = name;
+        if (preview != null) {
+            if (preview.layout.viewWidth == getWidth() && preview.layout.viewHeight == getHeight()) {
+                this.preview = preview;
+                redraw();
+            } else {
+                preview.bitmap.recycle();
+            }
+        }
+    }
+
+    private void dropPreview() {
+        if (preview != null) {
+            preview.bitmap.recycle();
+            preview = null;
+        }
+    }
+
+    private PreviewCache.Layout getPreviewLayout(int page) {
+        SizeF size = pdfFile.getScaledPageSize(page, zoom);
+        float pageOffset = pdfFile.getPageOffset(page, zoom);
+        float secondaryOffset = pdfFile.getSecondaryPageOffset(page, zoom);
+        float left = swipeVertical ? secondaryOffset : pageOffset;
+        float top = swipeVertical ? pageOffset : secondaryOffset;
+        return new PreviewCache.Layout(getWidth(), getHeight(), page, currentXOffset, currentYOffset, zoom,
+                new RectF(left, top, left + size.getWidth(), top + size.getHeight()));
+    }
+
+    /**
+     * Store thumbnail of the first shown page as the preview shown on next load of the document
+     */
+    private void storePreview(PagePart thumbnail) {
+        Bitmap bitmap = thumbnail.getRenderedBitmap();
+        Bitmap copy = bitmap.copy(bitmap.getConfig(), false);
+        if (copy != null) {
+            PreviewCache.getInstance(getContext()).put(previewName, new PreviewCache.Preview(copy, pendingPreviewLayout));
+        }
+        pendingPreviewLayout = null;
     }
 
     void loadError(Throwable t) {
@@ -851,6 +1218,72 @@ public class PDFView extends RelativeLayout {
      * @param part The created PagePart.
      */
     public void onBitmapRendered(PagePart part) {
+        cacheRenderedPart(part);
+        redraw();
+        dispatchRenderStats();
+    }
+
+    /**
+     * Recycle bitmap of a part which was not cached, or free its slot of the tile atlas
+     */
+    void recyclePart(PagePart part) {
+        if (part.getSourceRect() != null) {
+            tileAtlas.release(part.getRenderedBitmap(), part.getSourceRect());
+        } else {
+            part.getRenderedBitmap().recycle();
+        }
+    }
+
+    /**
+     * Queue part rendered by given handler, it is cached on the next frame together
+     * with other parts rendered meanwhile. Can be called from any thread.
+     */
+    void postRenderedPart(RenderingHandler handler, PagePart part) {
+        synchronized (renderedParts) {
+            if (handler != renderingHandler) {
+                // document was closed while the part was rendered
+                recyclePart(part);
+                return;
+            }
+            renderedParts.add(part);
+            if (!renderedPartsScheduled) {
+                renderedPartsScheduled = true;
+                choreographer.postFrameCallback(applyRenderedPartsCallback);
+            }
+        }
+    }
+
+    /**
+     * Cache parts rendered since the last frame and redraw once. Parts left over
+     * when {@link Constants#RENDER_APPLY_BUDGET} is used up are cached on the next frame
+     */
+    private void applyRenderedParts() {
+        long deadline = System.nanoTime() + Constants.RENDER_APPLY_BUDGET * 1000000L;
+        boolean applied = false;
+        while (true) {
+            PagePart part;
+            synchronized (renderedParts) {
+                part = renderedParts.poll();
+                if (part == null || (applied && System.nanoTime() > deadline)) {
+                    if (part != null) {
+                        renderedParts.addFirst(part);
+                        choreographer.postFrameCallback(applyRenderedPartsCallback);
+                    } else {
+                        renderedPartsScheduled = false;
+                    }
+                    break;
+                }
+            }
+            cacheRenderedPart(part);
+            applied = true;
+        }
+        if (applied) {
+            redraw();
+            dispatchRenderStats();
+        }
+    }
+
+    private void cacheRenderedPart(PagePart part) {
         // when it is first rendered part
         if (state == State.LOADED) {
             state = State.SHOWN;
@@ -858,13 +1291,45 @@ public class PDFView extends RelativeLayout {
         }
 
         if (part.isThumbnail()) {
-            if (!cacheManager.getThumbnails().contains(part)) {
-                cacheManager.cacheThumbnail(part);
+            if (preview != null && part.getPage() == preview.layout.page) {
+                // live thumbnail covers the same area, rendered parts are drawn over it
+                dropPreview();
             }
+            if (pendingPreviewLayout != null && part.getPage() == pendingPreviewLayout.page) {
+                storePreview(part);
+            }
+            cacheManager.cacheThumbnail(part);
         } else {
             cacheManager.cachePart(part);
         }
-        redraw();
+    }
+
+    private void dispatchRenderStats() {
+        if (callbacks.getOnRenderStatsListener() == null) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - lastRenderStatsTime >= Constants.STATS_INTERVAL) {
+            lastRenderStatsTime = now;
+            callbacks.callOnRenderStats(getRenderStats());
+        }
+    }
+
+    /**
+     * Get snapshot of cache and rendering statistics, can be called from any thread
+     */
+    public RenderStats getRenderStats() {
+        DiskTileCache diskTileCache = this.diskTileCache;
+        SharedTileCache sharedTileCache = this.sharedTileCache;
+        PdfFile pdfFile = this.pdfFile;
+        return new RenderStats(cacheManager.getPartsStats(), cacheManager.getThumbnailsStats(),
+                bitmapPool.getStats(),
+                diskTileCache != null ? diskTileCache.getStats() : new RenderStats.Tier(0, 0, 0, 0, 0),
+                sharedTileCache != null ? sharedTileCache.getStats() : new RenderStats.Tier(0, 0, 0, 0, 0),
+                renderMetrics.getQueueDepth(), renderMetrics.getDropped(), renderMetrics.getSkipped(),
+                renderMetrics.getLatency(false, false).copy(), renderMetrics.getLatency(false, true).copy(),
+                renderMetrics.getLatency(true, false).copy(), renderMetrics.getLatency(true, true).copy(),
+                pdfFile != null ? pdfFile.getResidentPages() : 0);
     }
 
     public void moveTo(float offsetX, float offsetY) {
@@ -946,6 +1411,7 @@ public class PDFView extends RelativeLayout {
             }
         }
 
+        updateScrollVelocity(swipeVertical ? offsetY - currentYOffset : offsetX - currentXOffset);
         currentXOffset = offsetX;
         currentYOffset = offsetY;
         float positionOffset = getPositionOffset();
@@ -959,6 +1425,38 @@ public class PDFView extends RelativeLayout {
         redraw();
     }
 
+    /**
+     * @param offsetDelta change of the offset along the scroll direction since the last move
+     */
+    private void updateScrollVelocity(float offsetDelta) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - lastMoveTime;
+        lastMoveTime = now;
+        if (elapsed <= 0 || elapsed > Constants.Prefetch.VELOCITY_TIMEOUT) {
+            scrollVelocity = 0;
+            return;
+        }
+        // offsets decrease when scrolling towards the end of the document
+        float velocity = -offsetDelta * 1000 / elapsed;
+        scrollVelocity += (velocity - scrollVelocity) * Constants.Prefetch.VELOCITY_SMOOTHING;
+    }
+
+    /**
+     * Get velocity of scrolling towards the end of the document, negative towards the start.
+     * It is zero unless the view is being dragged or flung right now
+     *
+     * @return velocity in pixels per second
+     */
+    float getScrollVelocity() {
+        if (!animationManager.isFlinging() && !dragPinchManager.isScrolling()) {
+            return 0;
+        }
+        if (SystemClock.uptimeMillis() - lastMoveTime > Constants.Prefetch.VELOCITY_TIMEOUT) {
+            return 0;
+        }
+        return scrollVelocity;
+    }
+
     void loadPageByOffset() {
         if (0 == pdfFile.getPagesCount()) {
             return;
@@ -1245,6 +1743,147 @@ public class PDFView extends RelativeLayout {
         return bestQuality;
     }
 
+    /**
+     * Limit memory used by rendered parts of this view
+     *
+     * @param maxCacheBytes maximum number of bytes, or 0 to derive it from the device memory class
+     */
+    public void setMaxCacheBytes(long maxCacheBytes) {
+        cacheManager.setMaxCacheBytes(maxCacheBytes > 0 ? maxCacheBytes : getDefaultMaxCacheBytes());
+    }
+
+    public long getMaxCacheBytes() {
+        return cacheManager.getMaxCacheBytes();
+    }
+
+    /**
+     * Release cached bitmaps in tiers depending on given {@link ComponentCallbacks2} trim level:
+     * passive parts and pooled bitmaps first, then parts outside of the screen, then thumbnails
+     * of pages outside of the screen. Visible parts are kept, limits grow back gradually afterwards.
+     * Called automatically while the view is attached to a window.
+     */
+    public void trimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        removeCallbacks(growCacheRunnable);
+
+        long screenBytes = getScreenCacheBytes();
+        cacheManager.trimPassive(screenBytes);
+        bitmapPool.trimToSize(0);
+        tileAtlas.trim();
+
+        // running critical, or the UI is hidden and parts outside of the screen are not needed soon
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL && pdfFile != null) {
+            cacheManager.trimActive(this::isPartVisible, screenBytes);
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE && pdfFile != null) {
+            cacheManager.trimThumbnails(this::isPartVisible);
+        }
+
+        postDelayed(growCacheRunnable, Constants.Cache.TRIM_GROWTH_INTERVAL);
+        redraw();
+    }
+
+    /**
+     * Bytes needed to cover the screen with parts, including parts rendered at a higher zoom level
+     */
+    private long getScreenCacheBytes() {
+        int bytesPerPixel = bestQuality ? 4 : 2;
+        float levelZoomRatio = (float) Math.pow(2, 1.0 / Constants.ZOOM_LEVELS_PER_DOUBLING);
+        return (long) (getWidth() * getHeight() * bytesPerPixel * levelZoomRatio * levelZoomRatio);
+    }
+
+    /**
+     * Check whether the part is at least partially on the screen
+     */
+    private boolean isPartVisible(PagePart part) {
+        SizeF size = pdfFile.getPageSize(part.getPage());
+        float pageX, pageY;
+        if (swipeVertical) {
+            pageX = toCurrentScale(pdfFile.getMaxPageWidth() - size.getWidth()) / 2;
+            pageY = pdfFile.getPageOffset(part.getPage(), zoom);
+        } else {
+            pageX = pdfFile.getPageOffset(part.getPage(), zoom);
+            pageY = toCurrentScale(pdfFile.getMaxPageHeight() - size.getHeight()) / 2;
+        }
+        RectF bounds = part.getPageRelativeBounds();
+        float left = currentXOffset + pageX + toCurrentScale(bounds.left * size.getWidth());
+        float top = currentYOffset + pageY + toCurrentScale(bounds.top * size.getHeight());
+        float right = currentXOffset + pageX + toCurrentScale(bounds.right * size.getWidth());
+        float bottom = currentYOffset + pageY + toCurrentScale(bounds.bottom * size.getHeight());
+        return left < getWidth() && right > 0 && top < getHeight() && bottom > 0;
+    }
+
+    private void setDiskCacheEnabled(boolean diskCacheEnabled) {
+        this.diskCacheEnabled = diskCacheEnabled;
+    }
+
+    public boolean isDiskCacheEnabled() {
+        return diskCacheEnabled;
+    }
+
+    private void setSharedCacheEnabled(boolean sharedCacheEnabled) {
+        this.sharedCacheEnabled = sharedCacheEnabled;
+    }
+
+    public boolean isSharedCacheEnabled() {
+        return sharedCacheEnabled;
+    }
+
+    private void setPreviewCacheEnabled(boolean previewCacheEnabled) {
+        this.previewCacheEnabled = previewCacheEnabled;
+    }
+
+    public boolean isPreviewCacheEnabled() {
+        return previewCacheEnabled;
+    }
+
+    private void setLayoutCacheEnabled(boolean layoutCacheEnabled) {
+        this.layoutCacheEnabled = layoutCacheEnabled;
+    }
+
+    public boolean isLayoutCacheEnabled() {
+        return layoutCacheEnabled;
+    }
+
+    private void setRenderThreads(int renderThreads) {
+        this.renderThreads = renderThreads > 0 ? renderThreads : Constants.RENDER_THREADS;
+    }
+
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    private void setProgressiveRendering(boolean progressiveRendering) {
+        this.progressiveRendering = progressiveRendering;
+    }
+
+    public boolean isProgressiveRendering() {
+        return progressiveRendering;
+    }
+
+    private void setTileAtlasEnabled(boolean tileAtlasEnabled) {
+        this.tileAtlasEnabled = tileAtlasEnabled;
+    }
+
+    public boolean isTileAtlasEnabled() {
+        return tileAtlasEnabled;
+    }
+
+    private void setLazyLayout(boolean lazyLayout) {
+        this.lazyLayout = lazyLayout;
+    }
+
+    public boolean isLazyLayout() {
+        return lazyLayout;
+    }
+
+    private long getDefaultMaxCacheBytes() {
+        return (long) (Util.getMemoryClassBytes(getContext()) * Constants.Cache.CACHE_MEMORY_FRACTION);
+    }
+
     public boolean isSwipeVertical() {
         return swipeVertical;
     }
@@ -1355,8 +1994,8 @@ public class PDFView extends RelativeLayout {
             pageX = (int) pdfFile.getPageOffset(page, getZoom());
         }
 
-        PointF point =  pdfiumSDK.mapDeviceCoordinateToPage(pdfFile.getPdfDocument(), page, pageX, pageY, (int) pageSize.getWidth(),
-                (int) pageSize.getHeight(), 0, (int) mappedX, (int) mappedY);
+        PointF point = pdfFile.mapDeviceCoordinateToPage(page, pageX, pageY, (int) pageSize.getWidth(),
+                (int) pageSize.getHeight(), (int) mappedX, (int) mappedY);
         return point;
     }
 
@@ -1388,9 +2027,8 @@ public class PDFView extends RelativeLayout {
             pageX = (int) pdfFile.getPageOffset(page, getZoom());
         }
 
-
-        PointF point =  pdfiumSDK.mapDeviceCoordinateToPage(pdfFile.getPdfDocument(), page, pageX, pageY, (int) pageSize.getWidth(),
-                (int) pageSize.getHeight(), 0, (int) mappedX, (int) mappedY);
+        PointF point = pdfFile.mapDeviceCoordinateToPage(page, pageX, pageY, (int) pageSize.getWidth(),
+                (int) pageSize.getHeight(), (int) mappedX, (int) mappedY);
         return point;
     }
 
@@ -1500,6 +2138,8 @@ public class PDFView extends RelativeLayout {
 
         private OnRenderListener onRenderListener;
 
+        private OnRenderStatsListener onRenderStatsListener;
+
         private OnTapListener onTapListener;
 
         private OnLongPressListener onLongPressListener;
@@ -1532,6 +2172,27 @@ public class PDFView extends RelativeLayout {
 
         private boolean nightMode = false;
 
+        /**
+         * Negative if not set, the limit of the view, e.g. from {@link PDFView#setMaxCacheBytes(long)}, is kept
+         */
+        private long maxCacheBytes = -1;
+
+        private boolean diskCache = false;
+
+        private boolean previewCache = false;
+
+        private boolean layoutCache = false;
+
+        private boolean sharedCache = false;
+
+        private int renderThreads = Constants.RENDER_THREADS;
+
+        private boolean progressiveRendering = false;
+
+        private boolean tileAtlas = false;
+
+        private boolean lazyLayout = false;
+
         private Configurator(DocumentSource documentSource) {
             this.documentSource = documentSource;
         }
@@ -1596,6 +2257,15 @@ public class PDFView extends RelativeLayout {
             return this;
         }
 
+        /**
+         * Receive cache and rendering statistics periodically while parts are rendered,
+         * they can be also polled with {@link PDFView#getRenderStats()}
+         */
+        public Configurator onRenderStats(OnRenderStatsListener onRenderStatsListener) {
+            this.onRenderStatsListener = onRenderStatsListener;
+            return this;
+        }
+
         public Configurator onTap(OnTapListener onTapListener) {
             this.onTapListener = onTapListener;
             return this;
@@ -1671,6 +2341,91 @@ public class PDFView extends RelativeLayout {
             return this;
         }
 
+        /**
+         * Maximum number of bytes used by rendered parts, 0 derives it from the device memory class.
+         * If not called, the current limit of the view is kept
+         */
+        public Configurator cacheSize(long maxCacheBytes) {
+            this.maxCacheBytes = maxCacheBytes;
+            return this;
+        }
+
+        /**
+         * Store parts evicted from memory in {@link DiskTileCache}, so they do not have to be
+         * rendered again. Works only with document sources providing a fingerprint
+         */
+        public Configurator diskCache(boolean diskCache) {
+            this.diskCache = diskCache;
+            return this;
+        }
+
+        /**
+         * Share rendered parts with other views showing the same document with the same page sizes
+         * and options, instead of rendering them in each view. Works only with document sources providing a fingerprint
+         */
+        public Configurator sharedCache(boolean sharedCache) {
+            this.sharedCache = sharedCache;
+            return this;
+        }
+
+        /**
+         * Store a preview of the first shown page in {@link PreviewCache} and draw it on the next load
+         * of the same document, until the page is rendered. Works only with document sources providing a fingerprint
+         */
+        public Configurator previewCache(boolean previewCache) {
+            this.previewCache = previewCache;
+            return this;
+        }
+
+        /**
+         * Store sizes of pages in {@link LayoutCache}, so the next load of the same document does not measure
+         * every page. Works only with document sources providing a fingerprint
+         */
+        public Configurator layoutCache(boolean layoutCache) {
+            this.layoutCache = layoutCache;
+            return this;
+        }
+
+        /**
+         * Number of threads rendering parts. Threads render with separate handles of the document
+         * if the document source can open it more than once, see {@link DocumentSource#canCreateMultipleDocuments()},
+         * and the pdfium binding does not serialize its native calls. The current binding does, so threads share
+         * one handle and overlap only the work around rendering, like caching and disk access
+         */
+        public Configurator renderThreads(int renderThreads) {
+            this.renderThreads = renderThreads;
+            return this;
+        }
+
+        /**
+         * Render visible parts as {@code RGB_565} drafts at {@link Constants#DRAFT_SCALE} of the resolution first,
+         * to fill the screen quickly, then replace them with final parts. Useful with complex pages
+         * and {@link PDFView#useBestQuality(boolean)}
+         */
+        public Configurator progressiveRendering(boolean progressiveRendering) {
+            this.progressiveRendering = progressiveRendering;
+            return this;
+        }
+
+        /**
+         * Render parts into slots of a few large sheets, see {@link Constants.Cache#ATLAS_SHEET_SIZE},
+         * instead of allocating a bitmap per part. Parts kept in sheets are not shared with other views
+         */
+        public Configurator tileAtlas(boolean tileAtlas) {
+            this.tileAtlas = tileAtlas;
+            return this;
+        }
+
+        /**
+         * Show documents with more than {@link Constants.Layout#SAMPLE_PAGES} pages after measuring only
+         * a sample of pages, other pages get an estimated size until they are measured in the background.
+         * The view keeps the page under the finger in place when sizes are refined
+         */
+        public Configurator lazyLayout(boolean lazyLayout) {
+            this.lazyLayout = lazyLayout;
+            return this;
+        }
+
         public Configurator disableLongpress() {
             PDFView.this.dragPinchManager.disableLongpress();
             return this;
@@ -1689,6 +2444,7 @@ public class PDFView extends RelativeLayout {
             PDFView.this.callbacks.setOnPageChangeListener(onPageChangeListener);
             PDFView.this.callbacks.setOnPageScrollListener(onPageScrollListener);
             PDFView.this.callbacks.setOnRenderListener(onRenderListener);
+            PDFView.this.callbacks.setOnRenderStatsListener(onRenderStatsListener);
             PDFView.this.callbacks.setOnTapListener(onTapListener);
             PDFView.this.callbacks.setOnLongPressListener(onLongPressListener);
             PDFView.this.callbacks.setOnPageErrorListener(onPageErrorListener);
@@ -1706,6 +2462,17 @@ public class PDFView extends RelativeLayout {
             PDFView.this.setFitEachPage(fitEachPage);
             PDFView.this.setPageSnap(pageSnap);
             PDFView.this.setPageFling(pageFling);
+            if (maxCacheBytes >= 0) {
+                PDFView.this.setMaxCacheBytes(maxCacheBytes);
+            }
+            PDFView.this.setDiskCacheEnabled(diskCache);
+            PDFView.this.setPreviewCacheEnabled(previewCache);
+            PDFView.this.setLayoutCacheEnabled(layoutCache);
+            PDFView.this.setSharedCacheEnabled(sharedCache);
+            PDFView.this.setRenderThreads(renderThreads);
+            PDFView.this.setProgressiveRendering(progressiveRendering);
+            PDFView.this.setTileAtlasEnabled(tileAtlas);
+            PDFView.this.setLazyLayout(lazyLayout);
 
             if (pageNumbers != null) {
                 PDFView.this.load(documentSource, password, pageNumbers);
@@ -1732,6 +2499,7 @@ public class PDFView extends RelativeLayout {
             PDFView.this.callbacks.setOnPageChangeListener(onPageChangeListener);
             PDFView.this.callbacks.setOnPageScrollListener(onPageScrollListener);
             PDFView.this.callbacks.setOnRenderListener(onRenderListener);
+            PDFView.this.callbacks.setOnRenderStatsListener(onRenderStatsListener);
             PDFView.this.callbacks.setOnTapListener(onTapListener);
             PDFView.this.callbacks.setOnLongPressListener(onLongPressListener);
             PDFView.this.callbacks.setOnPageErrorListener(onPageErrorListener);
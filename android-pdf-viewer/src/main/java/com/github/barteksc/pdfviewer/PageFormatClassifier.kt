@@ -0,0 +1,101 @@
+package com.github.barteksc.pdfviewer
+
+import android.graphics.Bitmap
+import com.github.barteksc.pdfviewer.util.Constants
+import kotlin.math.abs
+
+/**
+ * Chooses the cheapest bitmap config which shows parts of a page without visible loss,
+ * judging by the page thumbnail rendered in [Bitmap.Config.ARGB_8888].
+ *
+ * Pages which are opaque and drawn with a few flat colors and grays, like text and line drawings,
+ * are rendered in [Bitmap.Config.RGB_565], which takes half of the memory. Pages with transparency
+ * or with gradients, which would show banding, keep [Bitmap.Config.ARGB_8888]. That includes gray ramps
+ * of photo scans and shading, since [Bitmap.Config.RGB_565] keeps fewer levels of red and blue than of green
+ * and tints grays it cannot show exactly. Grays of anti-aliased edges of text and lines cover only
+ * a few pixels each and do not count as ramps.
+ */
+internal object PageFormatClassifier {
+
+    /**
+     * Mask of the bits of a color which are kept in [Bitmap.Config.RGB_565]
+     */
+    private const val RGB_565_MASK = 0xF8FCF8
+
+    fun classify(thumbnail: Bitmap): Bitmap.Config {
+        val width = thumbnail.width
+        val pixels = IntArray(width * thumbnail.height)
+        thumbnail.getPixels(pixels, 0, width, 0, 0, width, thumbnail.height)
+        return if (fitsRgb565(pixels, width)) Bitmap.Config.RGB_565 else Bitmap.Config.ARGB_8888
+    }
+
+    /**
+     * Check whether pixels of a page, in rows of given width, can be shown in [Bitmap.Config.RGB_565]
+     */
+    fun fitsRgb565(pixels: IntArray, width: Int): Boolean {
+        val colors = HashSet<Int>()
+        // pixels of smooth gray areas, by gray level of RGB_565
+        val levelPixels = IntArray(64)
+        for (i in pixels.indices) {
+            val pixel = pixels[i]
+            if (pixel ushr 24 != 0xFF) {
+                return false
+            }
+            if (!isGray(pixel)) {
+                colors.add(pixel and RGB_565_MASK)
+                if (colors.size > Constants.PAGE_FORMAT_MAX_COLORS) {
+                    return false
+                }
+                continue
+            }
+            if (survivesRgb565(pixel)) {
+                continue
+            }
+            // anti-aliased edges jump between levels, ramps and shading change in small steps
+            val green = green(pixel)
+            if (i % width > 0 && isGray(pixels[i - 1]) &&
+                abs(green - green(pixels[i - 1])) <= Constants.PAGE_FORMAT_RAMP_STEP
+            ) {
+                levelPixels[green shr 2]++
+            }
+        }
+        val minLevelPixels = Math.max(1, (pixels.size * Constants.PAGE_FORMAT_MIN_LEVEL_SHARE).toInt())
+        var levels = 0
+        var rampPixels = 0
+        for (count in levelPixels) {
+            if (count >= minLevelPixels) {
+                levels++
+                rampPixels += count
+            }
+        }
+        return levels <= Constants.PAGE_FORMAT_MAX_GRAY_LEVELS ||
+                rampPixels <= pixels.size * Constants.PAGE_FORMAT_MAX_RAMP_SHARE
+    }
+
+    /**
+     * True if the color is the same after converting to [Bitmap.Config.RGB_565] and back
+     */
+    private fun survivesRgb565(pixel: Int): Boolean {
+        val red = red(pixel) shr 3
+        val green = green(pixel) shr 2
+        val blue = blue(pixel) shr 3
+        return red(pixel) == (red shl 3 or (red shr 2)) &&
+                green(pixel) == (green shl 2 or (green shr 4)) &&
+                blue(pixel) == (blue shl 3 or (blue shr 2))
+    }
+
+    private fun isGray(pixel: Int): Boolean {
+        val red = red(pixel)
+        val green = green(pixel)
+        val blue = blue(pixel)
+        val max = Math.max(red, Math.max(green, blue))
+        val min = Math.min(red, Math.min(green, blue))
+        return max - min <= Constants.PAGE_FORMAT_GRAY_TOLERANCE
+    }
+
+    private fun red(pixel: Int) = pixel shr 16 and 0xFF
+
+    private fun green(pixel: Int) = pixel shr 8 and 0xFF
+
+    private fun blue(pixel: Int) = pixel and 0xFF
+}
@@ -18,20 +18,45 @@
  */
 package com.github.barteksc.pdfviewer
 
+import android.graphics.Bitmap
 import android.graphics.RectF
+import com.github.barteksc.pdfviewer.model.PagePart
+import com.github.barteksc.pdfviewer.model.TileKey
 import com.github.barteksc.pdfviewer.util.Constants
 import com.github.barteksc.pdfviewer.util.MathUtils
 import com.github.barteksc.pdfviewer.util.Util
 import java.util.LinkedList
+import kotlin.math.ceil
+import kotlin.math.log2
+import kotlin.math.pow
 
 internal class PagesLoader(private val pdfView: PDFView) {
     private var cacheOrder = 0
+    private var zoomLevel = 0
+    private var levelZoom = 0f
     private var xOffset = 0f
     private var yOffset = 0f
     private var pageRelativePartWidth = 0f
     private var pageRelativePartHeight = 0f
     private var partRenderWidth = 0f
     private var partRenderHeight = 0f
+
+    /**
+     * Bounds of the page being loaded at current zoom, relative to the beginning of the document
+     */
+    private val pageBounds = RectF()
+
+    /**
+     * Holder of the scaled size of a page, see [PdfFile.getScaledPageSize]
+     */
+    private val scaledPageSize = RectF()
+
+    /**
+     * Center of the view, relative to the beginning of the document
+     */
+    private var centerX = 0f
+    private var centerY = 0f
+
     private val thumbnailRect = RectF(0f, 0f, 1f, 1f)
     private val preloadOffset: Int
 
@@ -87,8 +112,8 @@ internal class PagesLoader(private val pdfView: PDFView) {
         val size = pdfView.pdfFile.getPageSize(pageIndex)
         val ratioX = 1f / size.width
         val ratioY = 1f / size.height
-        val partHeight = Constants.PART_SIZE * ratioY / pdfView.zoom
-        val partWidth = Constants.PART_SIZE * ratioX / pdfView.zoom
+        val partHeight = Constants.PART_SIZE * ratioY / levelZoom
+        val partWidth = Constants.PART_SIZE * ratioX / levelZoom
         grid.rows = MathUtils.ceil(1f / partHeight)
         grid.cols = MathUtils.ceil(1f / partWidth)
     }
@@ -134,13 +159,13 @@ internal class PagesLoader(private val pdfView: PDFView) {
                     pageLastYOffset = fixedLastYOffset
                 } else {
                     val pageOffset = pdfView.pdfFile.getPageOffset(page, pdfView.zoom)
-                    val pageSize = pdfView.pdfFile.getScaledPageSize(page, pdfView.zoom)
+                    val pageSize = pdfView.pdfFile.getScaledPageSize(page, pdfView.zoom, scaledPageSize)
                     if (pdfView.isSwipeVertical) {
                         pageLastXOffset = fixedLastXOffset
-                        pageLastYOffset = pageOffset + pageSize.height
+                        pageLastYOffset = pageOffset + pageSize.height()
                     } else {
                         pageLastYOffset = fixedLastYOffset
-                        pageLastXOffset = pageOffset + pageSize.width
+                        pageLastXOffset = pageOffset + pageSize.width()
                     }
                 }
             } else if (page == lastPage) {
@@ -156,16 +181,16 @@ internal class PagesLoader(private val pdfView: PDFView) {
                 pageLastYOffset = fixedLastYOffset
             } else {
                 val pageOffset = pdfView.pdfFile.getPageOffset(page, pdfView.zoom)
-                val pageSize = pdfView.pdfFile.getScaledPageSize(page, pdfView.zoom)
+                val pageSize = pdfView.pdfFile.getScaledPageSize(page, pdfView.zoom, scaledPageSize)
                 if (pdfView.isSwipeVertical) {
                     pageFirstXOffset = fixedFirstXOffset
                     pageFirstYOffset = pageOffset
                     pageLastXOffset = fixedLastXOffset
-                    pageLastYOffset = pageOffset + pageSize.height
+                    pageLastYOffset = pageOffset + pageSize.height()
                 } else {
                     pageFirstXOffset = pageOffset
                     pageFirstYOffset = fixedFirstYOffset
-                    pageLastXOffset = pageOffset + pageSize.width
+                    pageLastXOffset = pageOffset + pageSize.width()
                     pageLastYOffset = fixedLastYOffset
                 }
             }
@@ -173,9 +198,9 @@ internal class PagesLoader(private val pdfView: PDFView) {
                 range.gridSize,
                 range.page
             ) // get the page's grid size that rows and cols
-            val scaledPageSize = pdfView.pdfFile.getScaledPageSize(range.page, pdfView.zoom)
-            val rowHeight = scaledPageSize.height / range.gridSize.rows
-            val colWidth = scaledPageSize.width / range.gridSize.cols
+            pdfView.pdfFile.getScaledPageSize(range.page, pdfView.zoom, scaledPageSize)
+            val rowHeight = scaledPageSize.height() / range.gridSize.rows
+            val colWidth = scaledPageSize.width() / range.gridSize.cols
 
 
             // get the page offset int the whole file
@@ -250,16 +275,43 @@ internal class PagesLoader(private val pdfView: PDFView) {
 
     private fun loadVisible() {
         var parts = 0
+        val partsCapacity = pdfView.cacheManager.getPartsCapacity(getBitmapConfig())
         val scaledPreloadOffset = preloadOffset.toFloat()
-        val firstXOffset = -xOffset + scaledPreloadOffset
-        val lastXOffset = -xOffset - pdfView.width - scaledPreloadOffset
-        val firstYOffset = -yOffset + scaledPreloadOffset
-        val lastYOffset = -yOffset - pdfView.height - scaledPreloadOffset
+        val velocity = pdfView.scrollVelocity
+        val viewLength = (if (pdfView.isSwipeVertical) pdfView.height else pdfView.width).toFloat()
+        val speed = Math.abs(velocity)
+        val fillSeconds = getScreenFillSeconds()
+        // too fast for parts to be rendered before they leave the screen
+        val thumbnailsOnly = speed > viewLength * Constants.Prefetch.THUMBNAILS_ONLY_SPEED ||
+                speed * fillSeconds > viewLength
+        // preload the area reached while the screen is rendered, and nothing behind
+        val ahead = scaledPreloadOffset + Math.min(speed * fillSeconds, viewLength * Constants.Prefetch.MAX_SCREENS)
+        val startPreload = if (velocity > 0) 0f else if (velocity < 0) ahead else scaledPreloadOffset
+        val endPreload = if (velocity < 0) 0f else if (velocity > 0) ahead else scaledPreloadOffset
+        val firstXOffset: Float
+        val lastXOffset: Float
+        val firstYOffset: Float
+        val lastYOffset: Float
+        if (pdfView.isSwipeVertical) {
+            firstXOffset = -xOffset + scaledPreloadOffset
+            lastXOffset = -xOffset - pdfView.width - scaledPreloadOffset
+            firstYOffset = -yOffset + startPreload
+            lastYOffset = -yOffset - pdfView.height - endPreload
+        } else {
+            firstXOffset = -xOffset + startPreload
+            lastXOffset = -xOffset - pdfView.width - endPreload
+            firstYOffset = -yOffset + scaledPreloadOffset
+            lastYOffset = -yOffset - pdfView.height - scaledPreloadOffset
+        }
         val rangeList = getRenderRangeList(firstXOffset, firstYOffset, lastXOffset, lastYOffset)
         for (range in rangeList) {
             loadThumbnail(range.page)
         }
+        if (thumbnailsOnly) {
+            return
+        }
         for (range in rangeList) {
+            calculatePageBounds(range.page)
             calculatePartSize(range.gridSize)
             parts += loadPage(
                 range.page,
@@ -267,9 +319,9 @@ internal class PagesLoader(private val pdfView: PDFView) {
                 range.rightBottom.row,
                 range.leftTop.col,
                 range.rightBottom.col,
-                Constants.Cache.CACHE_SIZE - parts
+                partsCapacity - parts
             )
-            if (parts >= Constants.Cache.CACHE_SIZE) {
+            if (parts >= partsCapacity) {
                 break
             }
         }
@@ -314,14 +366,31 @@ internal class PagesLoader(private val pdfView: PDFView) {
         }
         renderWidth *= relWidth
         renderHeight *= relHeight
-        val pageRelativeBounds = RectF(relX, relY, relX + relWidth, relY + relHeight)
         if (renderWidth > 0 && renderHeight > 0) {
-            if (!pdfView.cacheManager.upPartIfContained(page, pageRelativeBounds, cacheOrder)) {
-                pdfView.renderingHandler.addRenderingTask(
-                    page, renderWidth, renderHeight,
-                    pageRelativeBounds, false, cacheOrder, pdfView.isBestQuality,
-                    pdfView.isAnnotationRendering
-                )
+            val key = TileKey.of(page, zoomLevel, row, col)
+            if (!pdfView.cacheManager.upPartIfContained(key, cacheOrder)) {
+                val pageRelativeBounds = RectF(relX, relY, relX + relWidth, relY + relHeight)
+                val left = pageBounds.left + relX * pageBounds.width()
+                val top = pageBounds.top + relY * pageBounds.height()
+                val right = left + relWidth * pageBounds.width()
+                val bottom = top + relHeight * pageBounds.height()
+                val visible = left < xOffset + pdfView.width && right > xOffset &&
+                        top < yOffset + pdfView.height && bottom > yOffset
+                val priority =
+                    if (visible) RenderingHandler.PRIORITY_VISIBLE else RenderingHandler.PRIORITY_PRELOAD
+                val distance = getDistance((left + right) / 2, (top + bottom) / 2)
+                if (!loadShared(key, page, renderWidth, renderHeight, pageRelativeBounds, false) &&
+                    !loadFromDisk(key, page, renderWidth, renderHeight, pageRelativeBounds, priority, distance)
+                ) {
+                    // fill the screen with drafts first, unless a draft is already shown
+                    val draft = visible && pdfView.isProgressiveRendering &&
+                            !pdfView.cacheManager.containsDraft(key)
+                    pdfView.renderingHandler.addRenderingTask(
+                        key, page, renderWidth, renderHeight,
+                        pageRelativeBounds, false, cacheOrder, pdfView.isBestQuality,
+                        pdfView.isAnnotationRendering, priority, distance, draft
+                    )
+                }
             }
             cacheOrder++
             return true
@@ -329,23 +398,163 @@ internal class PagesLoader(private val pdfView: PDFView) {
         return false
     }
 
+    /**
+     * Use part already rendered by another view showing the same document
+     *
+     * @return false if no view holds the part
+     */
+    private fun loadShared(
+        key: Long,
+        page: Int,
+        renderWidth: Float,
+        renderHeight: Float,
+        pageRelativeBounds: RectF,
+        thumbnail: Boolean
+    ): Boolean {
+        val sharedTileCache = pdfView.sharedTileCache ?: return false
+        val name = DiskTileCache.tileName(
+            pdfView.tileNamePrefix, pdfView.pdfFile.documentPage(page), pageRelativeBounds,
+            Math.round(renderWidth), Math.round(renderHeight),
+            if (thumbnail) getBitmapConfig() else getPartConfig(page)
+        )
+        val bitmap = sharedTileCache.acquire(name) ?: return false
+        pdfView.onBitmapRendered(
+            PagePart(key, page, bitmap, pageRelativeBounds, thumbnail, if (thumbnail) 0 else cacheOrder)
+        )
+        return true
+    }
+
+    private fun getBitmapConfig(): Bitmap.Config {
+        return if (pdfView.isBestQuality) Bitmap.Config.ARGB_8888 else Bitmap.Config.RGB_565
+    }
+
+    private fun getPartConfig(page: Int): Bitmap.Config {
+        return pdfView.renderingHandler.getPartConfig(page, pdfView.isBestQuality)
+    }
+
+    /**
+     * Load part from the disk cache instead of rendering it
+     *
+     * @return false if part is not stored on disk and has to be rendered
+     */
+    private fun loadFromDisk(
+        key: Long,
+        page: Int,
+        renderWidth: Float,
+        renderHeight: Float,
+        pageRelativeBounds: RectF,
+        priority: Int,
+        distance: Float
+    ): Boolean {
+        val diskTileCache = pdfView.diskTileCache ?: return false
+        val config = getPartConfig(page)
+        val name = DiskTileCache.tileName(
+            pdfView.tileNamePrefix, pdfView.pdfFile.documentPage(page), pageRelativeBounds,
+            Math.round(renderWidth), Math.round(renderHeight), config
+        )
+        if (!diskTileCache.contains(name)) {
+            return false
+        }
+        val pdfFile = pdfView.pdfFile
+        val order = cacheOrder
+        val bestQuality = pdfView.isBestQuality
+        val annotationRendering = pdfView.isAnnotationRendering
+        diskTileCache.get(name, config) { bitmap ->
+            pdfView.post {
+                if (pdfView.pdfFile !== pdfFile) {
+                    bitmap?.let { pdfView.bitmapPool.put(it) }
+                } else if (bitmap != null) {
+                    pdfView.onBitmapRendered(PagePart(key, page, bitmap, pageRelativeBounds, false, order))
+                } else {
+                    // stored file is broken, render part after all
+                    pdfView.renderingHandler?.addRenderingTask(
+                        key, page, renderWidth, renderHeight,
+                        pageRelativeBounds, false, order, bestQuality, annotationRendering,
+                        priority, distance, false
+                    )
+                }
+            }
+        }
+        return true
+    }
+
+    /**
+     * Calculate bounds of the page at current zoom, relative to the beginning of the document
+     */
+    private fun calculatePageBounds(page: Int) {
+        val pdfFile = pdfView.pdfFile
+        val size = pdfFile.getScaledPageSize(page, pdfView.zoom, scaledPageSize)
+        val pageOffset = pdfFile.getPageOffset(page, pdfView.zoom)
+        val secondaryOffset = pdfFile.getSecondaryPageOffset(page, pdfView.zoom)
+        if (pdfView.isSwipeVertical) {
+            pageBounds.set(secondaryOffset, pageOffset, secondaryOffset + size.width(), pageOffset + size.height())
+        } else {
+            pageBounds.set(pageOffset, secondaryOffset, pageOffset + size.width(), secondaryOffset + size.height())
+        }
+    }
+
+    /**
+     * Estimate time needed to render parts covering the whole view, from measured render durations
+     *
+     * @return time in seconds, 0 if nothing was measured yet
+     */
+    private fun getScreenFillSeconds(): Float {
+        val latency = pdfView.renderMetrics.getLatency(false, pdfView.isBestQuality && !pdfView.isProgressiveRendering)
+        val partsPerScreen = MathUtils.ceil(pdfView.width / Constants.PART_SIZE) *
+                MathUtils.ceil(pdfView.height / Constants.PART_SIZE)
+        return latency.averageMillis * partsPerScreen / pdfView.renderThreads / 1000f
+    }
+
+    /**
+     * Distance of a point from the center of the view, used to render parts nearest to the center first
+     */
+    private fun getDistance(x: Float, y: Float): Float {
+        return Math.hypot((x - centerX).toDouble(), (y - centerY).toDouble()).toFloat()
+    }
+
     private fun loadThumbnail(page: Int) {
         val pageSize = pdfView.pdfFile.getPageSize(page)
         val thumbnailWidth = pageSize.width * Constants.THUMBNAIL_RATIO
         val thumbnailHeight = pageSize.height * Constants.THUMBNAIL_RATIO
-        if (!pdfView.cacheManager.containsThumbnail(page, thumbnailRect)) {
+        if (!pdfView.cacheManager.containsThumbnail(page) &&
+            !loadShared(TileKey.thumbnail(page), page, thumbnailWidth, thumbnailHeight, thumbnailRect, true)
+        ) {
+            calculatePageBounds(page)
             pdfView.renderingHandler.addRenderingTask(
-                page,
+                TileKey.thumbnail(page), page,
                 thumbnailWidth, thumbnailHeight, thumbnailRect,
-                true, 0, pdfView.isBestQuality, pdfView.isAnnotationRendering
+                true, 0, pdfView.isBestQuality, pdfView.isAnnotationRendering,
+                RenderingHandler.PRIORITY_THUMBNAIL, getDistance(pageBounds.centerX(), pageBounds.centerY()),
+                false
             )
         }
     }
 
     fun loadPages() {
         cacheOrder = 1
+        // render at the nearest pyramid level at or above the zoom, so parts are reused
+        // for all zooms of the level and parts of other levels are drawn until replaced
+        zoomLevel = getZoomLevel(pdfView.zoom)
+        levelZoom = getLevelZoom(zoomLevel)
         xOffset = -MathUtils.max(pdfView.currentXOffset, 0f)
         yOffset = -MathUtils.max(pdfView.currentYOffset, 0f)
+        centerX = xOffset + pdfView.width / 2f
+        centerY = yOffset + pdfView.height / 2f
         loadVisible()
     }
+
+    companion object {
+        /**
+         * Tolerance for zooms computed with rounding errors, so they do not skip to the next level
+         */
+        private const val ZOOM_LEVEL_EPSILON = 0.001f
+
+        fun getZoomLevel(zoom: Float): Int {
+            return ceil(log2(zoom) * Constants.ZOOM_LEVELS_PER_DOUBLING - ZOOM_LEVEL_EPSILON).toInt()
+        }
+
+        fun getLevelZoom(zoomLevel: Int): Float {
+            return 2f.pow(zoomLevel.toFloat() / Constants.ZOOM_LEVELS_PER_DOUBLING)
+        }
+    }
 }
\ No newline at end of file
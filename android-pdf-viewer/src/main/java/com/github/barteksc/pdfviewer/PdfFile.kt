@@ -19,16 +19,22 @@
 package com.github.barteksc.pdfviewer
 
 import android.graphics.Bitmap
+import android.graphics.PointF
 import android.graphics.Rect
 import android.graphics.RectF
+import android.util.Log
 import android.util.SparseBooleanArray
 import com.github.barteksc.pdfviewer.exception.PageRenderingException
+import com.github.barteksc.pdfviewer.util.Constants
 import com.github.barteksc.pdfviewer.util.FitPolicy
 import com.github.barteksc.pdfviewer.util.PageSizeCalculator
 import com.shockwave.pdfium.PdfDocument
 import com.shockwave.pdfium.PdfiumCore
 import com.shockwave.pdfium.util.Size
 import com.shockwave.pdfium.util.SizeF
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
 
 /** This class represents a PDF document, providing functionalities for handling pages,
  *  calculating page size and rendering page bitmap. It's an intermediary between the application
@@ -36,7 +42,7 @@ import com.shockwave.pdfium.util.SizeF
  *  */
 class PdfFile internal constructor(
     private val pdfiumSDK: PdfiumCore?,
-    var pdfDocument: PdfDocument?,
+    @Volatile var pdfDocument: PdfDocument?,
     private val pageFitPolicy: FitPolicy,
     viewSize: Size,
     /**
@@ -60,25 +66,131 @@ class PdfFile internal constructor(
      * True if every page should fit separately according to the FitPolicy,
      * else the largest page fits and other pages scale relatively
      */
-    private val fitEachPage: Boolean
+    private val fitEachPage: Boolean,
+    /**
+     * Identity of the document content, null if it is unknown
+     * @see com.github.barteksc.pdfviewer.source.DocumentSource.getFingerprint
+     */
+    val fingerprint: String?,
+    /**
+     * Opens additional handles of the same document, so pages can be rendered by several threads,
+     * null if the document can be opened only once
+     */
+    private val documentFactory: DocumentFactory?,
+    /**
+     * Maximum number of document handles used for rendering, including [pdfDocument]
+     */
+    private val maxDocuments: Int,
+    /**
+     * Sizes of all pages of the document stored by [LayoutCache], used instead of measuring pages
+     * if the document still has the same number of pages, null if none are stored
+     */
+    cachedPageSizes: Array<Size>?,
+    /**
+     * Measure only a sample of pages when opening a large document and estimate the others,
+     * see [measurePageSizes]
+     */
+    lazyLayout: Boolean,
+    /**
+     * Page shown first, measured in lazy layout mode together with pages around it
+     */
+    private val defaultPage: Int
 ) {
+
+    /**
+     * Creates a new handle of the document
+     */
+    fun interface DocumentFactory {
+        @Throws(IOException::class)
+        fun createDocument(): PdfDocument
+    }
+
+    /**
+     * Document handle used by one rendering thread at a time, with pages opened in it.
+     * Pages are used and closed only while holding the handle's lock
+     */
+    private class DocumentHandle(val document: PdfDocument, val id: Int) {
+        val openedPages = SparseBooleanArray()
+        var closed = false
+    }
+
+    private val primaryHandle: DocumentHandle? = pdfDocument?.let { DocumentHandle(it, 0) }
+
+    private val handleIds = AtomicInteger(1)
+
+    /**
+     * Document handles not used by any rendering thread
+     */
+    private val idleHandles = ArrayDeque<DocumentHandle>()
+
+    private var handleCount = 0
+
+    /**
+     * True if opening an additional handle failed, rendering continues with the handles already opened
+     */
+    private var openFailed = false
+
+    private var disposed = false
+
+    /**
+     * True if the primary handle has too many open pages and is no longer used for rendering,
+     * it is still used for links and coordinates of pages. Only if single pages cannot be closed
+     */
+    private var primaryRetired = false
+
+    private val residentPageCount = AtomicInteger()
+
+    /**
+     * Pages open in all handles in least recently used order, keyed by [pageKey]
+     */
+    private val openPages = LinkedHashMap<Long, DocumentHandle>(16, 0.75f, true)
+
+    /**
+     * Page shown by the view, pages around it are kept open, see [Constants.Cache.KEEP_OPEN_PAGES_AROUND]
+     */
+    @Volatile
+    var currentPage = defaultPage
+
+    /**
+     * Number of native pages open in all handles of the document
+     */
+    val residentPages: Int
+        get() = residentPageCount.get()
+
+    @Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+    private val handlesLock = Object()
+
     var pagesCount = 0
         private set
 
     /**
-     * Original page sizes
+     * Original page sizes, estimated for pages which are not measured yet
+     */
+    private var originalPageSizes: Array<Size> = emptyArray()
+
+    /**
+     * Pages with measured sizes in lazy layout mode, null once all pages are measured
      */
-    private val originalPageSizes: MutableList<Size> = ArrayList()
+    private var measuredPages: BooleanArray? = null
+
+    private var unmeasuredCount = 0
+
+    /**
+     * True if page sizes were taken from [LayoutCache] instead of measuring them
+     */
+    var isLayoutCached = false
+        private set
 
     /**
      * Scaled page sizes
      */
-    private val pageSizes: MutableList<SizeF> = ArrayList()
+    private var pageSizes: Array<SizeF> = emptyArray()
 
     /**
-     * Opened pages with indicator whether opening was successful
+     * State of every document page in [pdfDocument], [PAGE_OPENED] or [PAGE_FAILED] once it was opened.
+     * Pages are opened once and then only read, so their state is checked without locking
      */
-    private val openedPages = SparseBooleanArray()
+    private var pageStates = AtomicIntegerArray(0)
 
     /**
      * Page with maximum width
@@ -101,14 +213,14 @@ class PdfFile internal constructor(
     private var maxWidthPageSize = SizeF(0f, 0f)
 
     /**
-     * Calculated offsets for pages
+     * Calculated offsets for pages at zoom 1, growing with the page index
      */
-    private val pageOffsets: MutableList<Float> = ArrayList()
+    private var pageOffsets = FloatArray(0)
 
     /**
      * Calculated auto spacing for pages
      */
-    private val pageSpacing: MutableList<Float> = ArrayList()
+    private var pageSpacing = FloatArray(0)
 
     /**
      * Calculated document length (width or height, depending on swipe mode)
@@ -116,26 +228,156 @@ class PdfFile internal constructor(
     private var documentLength = 0f
 
     init {
-        setup(viewSize)
+        setup(viewSize, cachedPageSizes, lazyLayout)
+        primaryHandle?.let {
+            idleHandles.add(it)
+            handleCount = 1
+        }
     }
 
-    private fun setup(viewSize: Size) {
-        pagesCount = if (originalUserPages != null) {
-            originalUserPages!!.size
+    private fun setup(viewSize: Size, cachedPageSizes: Array<Size>?, lazyLayout: Boolean) {
+        val documentPageCount = pdfiumSDK!!.getPageCount(pdfDocument)
+        pagesCount = originalUserPages?.size ?: documentPageCount
+        // user pages may point past the document, those fail to open like any other broken page
+        pageStates = AtomicIntegerArray(maxOf(documentPageCount, (originalUserPages?.maxOrNull() ?: -1) + 1))
+        originalPageSizes = if (cachedPageSizes != null && cachedPageSizes.size == documentPageCount) {
+            isLayoutCached = true
+            Array(pagesCount) {
+                val docPage = documentPage(it)
+                if (docPage < 0) Size(0, 0) else cachedPageSizes[docPage]
+            }
+        } else if (lazyLayout && pagesCount > Constants.Layout.SAMPLE_PAGES) {
+            estimatePageSizes()
         } else {
-            pdfiumSDK!!.getPageCount(pdfDocument)
+            Array(pagesCount) { pdfiumSDK!!.getPageSize(pdfDocument, documentPage(it)) }
         }
-        for (i in 0 until pagesCount) {
-            val pageSize = pdfiumSDK!!.getPageSize(pdfDocument, documentPage(i))
-            if (pageSize.width > originalMaxWidthPageSize.width) {
-                originalMaxWidthPageSize = pageSize
+        for (pageSize in originalPageSizes) {
+            updateMaxPageSize(pageSize)
+        }
+        recalculatePageSizes(viewSize)
+    }
+
+    /**
+     * Measure pages around the default page and pages spread over the document,
+     * the others get the most common measured size until they are measured
+     */
+    private fun estimatePageSizes(): Array<Size> {
+        val measured = BooleanArray(pagesCount)
+        val sizes = arrayOfNulls<Size>(pagesCount)
+        val counts = HashMap<Size, Int>()
+        val nearby = Constants.Layout.SAMPLE_PAGES / 2
+        val first = Math.max(0, Math.min(defaultPage - nearby / 2, pagesCount - nearby))
+        val spread = Constants.Layout.SAMPLE_PAGES - nearby
+        for (i in 0 until Constants.Layout.SAMPLE_PAGES) {
+            val page = if (i < nearby) first + i else ((i - nearby).toLong() * pagesCount / spread).toInt()
+            if (measured[page]) {
+                continue
+            }
+            val size = pdfiumSDK!!.getPageSize(pdfDocument, documentPage(page))
+            sizes[page] = size
+            measured[page] = true
+            counts[size] = (counts[size] ?: 0) + 1
+        }
+        val estimate = counts.maxByOrNull { it.value }!!.key
+        measuredPages = measured
+        unmeasuredCount = measured.count { !it }
+        return Array(pagesCount) { sizes[it] ?: estimate }
+    }
+
+    private fun updateMaxPageSize(pageSize: Size) {
+        if (pageSize.width > originalMaxWidthPageSize.width) {
+            originalMaxWidthPageSize = pageSize
+        }
+        if (pageSize.height > originalMaxHeightPageSize.height) {
+            originalMaxHeightPageSize = pageSize
+        }
+    }
+
+    /**
+     * True if sizes of all pages are measured, false while some are estimated in lazy layout mode
+     */
+    val isLayoutComplete: Boolean
+        get() = measuredPages == null
+
+    /**
+     * Get measured sizes of all pages of the document, to be stored in [LayoutCache]
+     *
+     * @return sizes by document page, null if only some pages are shown or some sizes are still estimated
+     */
+    fun getDocumentPageSizes(): Array<Size>? {
+        return if (originalUserPages != null || !isLayoutComplete) null else originalPageSizes.copyOf()
+    }
+
+    /**
+     * Get pages with estimated sizes nearest to given page, to be measured next
+     */
+    fun nextUnmeasuredPages(around: Int, count: Int): IntArray {
+        val measured = measuredPages ?: return IntArray(0)
+        val pages = IntArray(Math.min(count, unmeasuredCount))
+        val center = Math.max(0, Math.min(around, pagesCount - 1))
+        var found = 0
+        var distance = 0
+        while (found < pages.size) {
+            val before = center - distance
+            val after = center + distance
+            if (before >= 0 && !measured[before]) {
+                pages[found++] = before
+            }
+            if (distance > 0 && found < pages.size && after < pagesCount && !measured[after]) {
+                pages[found++] = after
+            }
+            distance++
+        }
+        return pages
+    }
+
+    /**
+     * Measure sizes of given pages, can be called from a background thread
+     *
+     * @return sizes of the pages or null if the document is disposed
+     */
+    fun measurePageSizes(pages: IntArray): Array<Size>? {
+        val handle = acquireHandle() ?: return null
+        try {
+            return Array(pages.size) { pdfiumSDK!!.getPageSize(handle.document, documentPage(pages[it])) }
+        } finally {
+            releaseHandle(handle)
+        }
+    }
+
+    /**
+     * Replace estimated sizes with measured ones and recalculate the layout if any of them differs
+     *
+     * @param viewSize current size of the view
+     * @return flags of pages whose scaled size changed, so their parts no longer fit, null if no page changed
+     */
+    fun applyPageSizes(pages: IntArray, sizes: Array<Size>, viewSize: Size): BooleanArray? {
+        val measured = measuredPages ?: return null
+        var changed = false
+        for (i in pages.indices) {
+            val page = pages[i]
+            if (measured[page]) {
+                continue
             }
-            if (pageSize.height > originalMaxHeightPageSize.height) {
-                originalMaxHeightPageSize = pageSize
+            measured[page] = true
+            unmeasuredCount--
+            if (sizes[i] != originalPageSizes[page]) {
+                originalPageSizes[page] = sizes[i]
+                updateMaxPageSize(sizes[i])
+                changed = true
             }
-            originalPageSizes.add(pageSize)
         }
+        if (unmeasuredCount == 0) {
+            measuredPages = null
+        }
+        if (!changed) {
+            return null
+        }
+        val oldSizes = pageSizes
         recalculatePageSizes(viewSize)
+        return BooleanArray(pagesCount) {
+            pageSizes[it].width != oldSizes[it].width || pageSizes[it].height != oldSizes[it].height
+        }
     }
 
     /**
@@ -144,16 +386,13 @@ class PdfFile internal constructor(
      * @param viewSize new size of changed view
      */
     fun recalculatePageSizes(viewSize: Size) {
-        pageSizes.clear()
         val calculator = PageSizeCalculator(
             pageFitPolicy, originalMaxWidthPageSize,
             originalMaxHeightPageSize, viewSize, fitEachPage
         )
         maxWidthPageSize = calculator.optimalMaxWidthPageSize
         maxHeightPageSize = calculator.optimalMaxHeightPageSize
-        for (size in originalPageSizes) {
-            pageSizes.add(calculator.calculate(size))
-        }
+        pageSizes = Array(pagesCount) { calculator.calculate(originalPageSizes[it]) }
         if (autoSpacing) {
             prepareAutoSpacing(viewSize)
         }
@@ -173,6 +412,22 @@ class PdfFile internal constructor(
         return SizeF(size.width * zoom, size.height * zoom)
     }
 
+    /**
+     * Get scaled page size without allocating, for code running on every frame
+     *
+     * @param size set to (0, 0, width, height) of the page
+     * @return given size
+     */
+    fun getScaledPageSize(pageIndex: Int, zoom: Float, size: RectF): RectF {
+        if (documentPage(pageIndex) < 0) {
+            size.setEmpty()
+        } else {
+            val pageSize = pageSizes[pageIndex]
+            size.set(0f, 0f, pageSize.width * zoom, pageSize.height * zoom)
+        }
+        return size
+    }
+
     /**
      * get page size with biggest dimension (width in vertical mode and height in horizontal mode)
      *
@@ -186,7 +441,7 @@ class PdfFile internal constructor(
         get() = maxPageSize.height
 
     private fun prepareAutoSpacing(viewSize: Size) {
-        pageSpacing.clear()
+        pageSpacing = FloatArray(pagesCount)
         for (i in 0 until pagesCount) {
             val pageSize = pageSizes[i]
             var spacing = Math.max(
@@ -196,7 +451,7 @@ class PdfFile internal constructor(
             if (i < pagesCount - 1) {
                 spacing += spacingPx.toFloat()
             }
-            pageSpacing.add(spacing)
+            pageSpacing[i] = spacing
         }
     }
 
@@ -215,7 +470,7 @@ class PdfFile internal constructor(
     }
 
     private fun preparePagesOffset() {
-        pageOffsets.clear()
+        pageOffsets = FloatArray(pagesCount)
         var offset = 0f
         for (i in 0 until pagesCount) {
             val pageSize = pageSizes[i]
@@ -227,10 +482,10 @@ class PdfFile internal constructor(
                 } else if (i == pagesCount - 1) {
                     offset += spacingPx / 2f
                 }
-                pageOffsets.add(offset)
+                pageOffsets[i] = offset
                 offset += size + pageSpacing[i] / 2f
             } else {
-                pageOffsets.add(offset)
+                pageOffsets[i] = offset
                 offset += size + spacingPx
             }
         }
@@ -277,43 +532,143 @@ class PdfFile internal constructor(
         }
     }
 
+    /**
+     * Get the last page starting, together with half of its spacing, before given offset
+     */
     fun getPageAtOffset(offset: Float, zoom: Float): Int {
-        var currentPage = 0
-        for (i in 0 until pagesCount) {
-            val off = pageOffsets[i] * zoom - getPageSpacing(i, zoom) / 2f
-            if (off >= offset) {
-                break
+        // pages start in the order of their indexes, count those starting before the offset
+        var low = 0
+        var high = pagesCount
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (pageOffsets[mid] * zoom - getPageSpacing(mid, zoom) / 2f < offset) {
+                low = mid + 1
+            } else {
+                high = mid
             }
-            currentPage++
         }
-        return if (--currentPage >= 0) currentPage else 0
+        return if (low > 0) low - 1 else 0
     }
 
     @Throws(PageRenderingException::class)
     fun openPage(pageIndex: Int): Boolean {
         val docPage = documentPage(pageIndex)
-        if (docPage < 0) {
+        if (docPage < 0 || pageStates.get(docPage) != PAGE_NOT_OPENED) {
             return false
         }
-        synchronized(lock) {
-            return if (openedPages.indexOfKey(docPage) < 0) {
-                try {
-                    pdfiumSDK!!.openPage(pdfDocument, docPage)
-                    openedPages.put(docPage, true)
-                    true
-                } catch (e: Exception) {
-                    openedPages.put(docPage, false)
-                    throw PageRenderingException(pageIndex, e)
+        // open in a rendering handle, where the page is rendered next and which keeps only a bounded number of pages
+        val handle = acquireHandle() ?: return false
+        try {
+            if (!openInHandle(handle, docPage)) {
+                return false
+            }
+        } catch (e: Exception) {
+            pageStates.compareAndSet(docPage, PAGE_NOT_OPENED, PAGE_FAILED)
+            throw PageRenderingException(pageIndex, e)
+        } finally {
+            releaseHandle(handle)
+        }
+        trimOpenPages()
+        return pageStates.compareAndSet(docPage, PAGE_NOT_OPENED, PAGE_OPENED)
+    }
+
+    /**
+     * Open page in given handle unless it is already open there, locking only that handle,
+     * and mark it as the most recently used page
+     *
+     * @return false if the handle is already closed
+     */
+    @Throws(Exception::class)
+    private fun openInHandle(handle: DocumentHandle, docPage: Int): Boolean {
+        synchronized(handle) {
+            if (handle.closed) {
+                return false
+            }
+            if (handle.openedPages.indexOfKey(docPage) < 0) {
+                pdfiumSDK!!.openPage(handle.document, docPage)
+                handle.openedPages.put(docPage, true)
+                residentPageCount.incrementAndGet()
+            }
+            synchronized(openPages) {
+                openPages[pageKey(handle, docPage)] = handle
+            }
+            return true
+        }
+    }
+
+    private fun pageKey(handle: DocumentHandle, docPage: Int): Long {
+        return (handle.id.toLong() shl 32) or docPage.toLong()
+    }
+
+    /**
+     * Close least recently used pages of all handles above [Constants.Cache.MAX_OPEN_PAGES],
+     * except pages around [currentPage]. Must be called without holding any handle lock
+     */
+    private fun trimOpenPages() {
+        if (!NativePageCloser.isAvailable || residentPageCount.get() <= Constants.Cache.MAX_OPEN_PAGES) {
+            return
+        }
+        val around = Constants.Cache.KEEP_OPEN_PAGES_AROUND
+        val current = currentPage
+        val keptPages = IntArray(2 * around + 1) { documentPage(current - around + it) }
+        val closed = ArrayList<Pair<DocumentHandle, Int>>()
+        synchronized(openPages) {
+            var excess = residentPageCount.get() - Constants.Cache.MAX_OPEN_PAGES
+            val iterator = openPages.entries.iterator()
+            while (excess > 0 && iterator.hasNext()) {
+                val entry = iterator.next()
+                val docPage = entry.key.toInt()
+                if (docPage in keptPages) {
+                    continue
+                }
+                iterator.remove()
+                closed.add(Pair(entry.value, docPage))
+                excess--
+            }
+        }
+        for ((handle, docPage) in closed) {
+            // pages are rendered while holding the handle lock, so the page is not in use
+            synchronized(handle) {
+                if (!handle.closed && handle.openedPages.indexOfKey(docPage) >= 0 &&
+                    NativePageCloser.close(pdfiumSDK!!, handle.document, docPage)
+                ) {
+                    handle.openedPages.delete(docPage)
+                    residentPageCount.decrementAndGet()
                 }
-            } else false
+            }
+        }
+    }
+
+    /**
+     * Run a pdfium call made with [pdfDocument] directly, e.g. mapping coordinates, with the page open.
+     * Pages not used recently are closed, the handle lock keeps the page open until the call returns.
+     * Pages are trimmed by rendering threads, the main thread does not wait for their handles
+     */
+    private inline fun <T> withPageInDocument(docPage: Int, call: () -> T): T {
+        val handle = primaryHandle
+        if (docPage < 0 || handle == null || pageStates.get(docPage) == PAGE_FAILED) {
+            return call()
+        }
+        synchronized(handle) {
+            try {
+                openInHandle(handle, docPage)
+            } catch (e: Exception) {
+                Log.e(TAG, "Cannot open page $docPage", e)
+            }
+            return call()
         }
     }
 
     fun pageHasError(pageIndex: Int): Boolean {
         val docPage = documentPage(pageIndex)
-        return !openedPages[docPage, false]
+        return docPage < 0 || pageStates.get(docPage) != PAGE_OPENED
     }
 
+    /**
+     * Render page with any document handle not used by other threads, waiting for one if all are busy.
+     * The page must be opened with [openPage] first.
+     */
+    @Throws(PageRenderingException::class)
     fun renderPageBitmap(
         bitmap: Bitmap?,
         pageIndex: Int,
@@ -321,10 +676,104 @@ class PdfFile internal constructor(
         annotationRendering: Boolean
     ) {
         val docPage = documentPage(pageIndex)
-        pdfiumSDK!!.renderPageBitmap(
-            pdfDocument, bitmap, docPage,
-            bounds.left, bounds.top, bounds.width(), bounds.height(), annotationRendering
-        )
+        val handle = acquireHandle() ?: return
+        try {
+            // closed pages reopen transparently, the lock keeps the page open until it is rendered
+            synchronized(handle) {
+                try {
+                    openInHandle(handle, docPage)
+                } catch (e: Exception) {
+                    throw PageRenderingException(pageIndex, e)
+                }
+                pdfiumSDK!!.renderPageBitmap(
+                    handle.document, bitmap, docPage,
+                    bounds.left, bounds.top, bounds.width(), bounds.height(), annotationRendering
+                )
+            }
+        } finally {
+            releaseHandle(handle)
+        }
+        trimOpenPages()
+    }
+
+    /**
+     * Take an idle document handle, open a new one if allowed, or wait until one is released
+     *
+     * @return handle or null if document is disposed
+     */
+    private fun acquireHandle(): DocumentHandle? {
+        synchronized(handlesLock) {
+            while (true) {
+                if (disposed) {
+                    return null
+                }
+                idleHandles.pollFirst()?.let { return it }
+                if (documentFactory != null && !openFailed && handleCount < maxDocuments) {
+                    handleCount++
+                    break
+                }
+                handlesLock.wait()
+            }
+        }
+        // open outside of the lock, other threads can keep rendering meanwhile
+        val document = try {
+            documentFactory!!.createDocument()
+        } catch (e: Exception) {
+            Log.e(TAG, "Cannot open another document handle", e)
+            null
+        }
+        if (document == null) {
+            synchronized(handlesLock) {
+                handleCount--
+                openFailed = true
+                if (primaryRetired && !disposed) {
+                    // no handle can replace it, render with the primary handle again
+                    primaryRetired = false
+                    handleCount++
+                    idleHandles.addFirst(primaryHandle!!)
+                }
+            }
+            return acquireHandle()
+        }
+        return DocumentHandle(document, handleIds.getAndIncrement())
+    }
+
+    private fun releaseHandle(handle: DocumentHandle) {
+        val handlePages = synchronized(handle) { handle.openedPages.size() }
+        synchronized(handlesLock) {
+            if (!disposed) {
+                if (handlePages <= Constants.Cache.MAX_OPEN_PAGES || NativePageCloser.isAvailable ||
+                    documentFactory == null || openFailed
+                ) {
+                    idleHandles.addFirst(handle)
+                    handlesLock.notify()
+                    return
+                }
+                // single pages cannot be closed, let a waiting thread open a new handle instead
+                handleCount--
+                handlesLock.notify()
+                if (handle === primaryHandle) {
+                    primaryRetired = true
+                    return
+                }
+            }
+        }
+        closeHandle(handle)
+    }
+
+    private fun closeHandle(handle: DocumentHandle) {
+        // wait for a page being opened in the handle
+        synchronized(handle) {
+            pdfiumSDK?.closeDocument(handle.document)
+            handle.closed = true
+            residentPageCount.addAndGet(-handle.openedPages.size())
+            synchronized(openPages) {
+                for (i in 0 until handle.openedPages.size()) {
+                    openPages.remove(pageKey(handle, handle.openedPages.keyAt(i)))
+                }
+            }
+            handle.openedPages.clear()
+        }
     }
 
     val metaData: PdfDocument.Meta?
@@ -338,7 +787,7 @@ class PdfFile internal constructor(
 
     fun getPageLinks(pageIndex: Int): List<PdfDocument.Link> {
         val docPage = documentPage(pageIndex)
-        return pdfiumSDK!!.getPageLinks(pdfDocument, docPage)
+        return withPageInDocument(docPage) { pdfiumSDK!!.getPageLinks(pdfDocument, docPage) }
     }
 
     fun mapRectToDevice(
@@ -350,21 +799,55 @@ class PdfFile internal constructor(
         rect: RectF?
     ): RectF {
         val docPage = documentPage(pageIndex)
-        return pdfiumSDK!!.mapRectToDevice(
-            pdfDocument,
-            docPage,
-            startX,
-            startY,
-            sizeX,
-            sizeY,
-            0,
-            rect
-        )
+        return withPageInDocument(docPage) {
+            pdfiumSDK!!.mapRectToDevice(
+                pdfDocument,
+                docPage,
+                startX,
+                startY,
+                sizeX,
+                sizeY,
+                0,
+                rect
+            )
+        }
+    }
+
+    fun mapDeviceCoordinateToPage(
+        pageIndex: Int,
+        startX: Int,
+        startY: Int,
+        sizeX: Int,
+        sizeY: Int,
+        deviceX: Int,
+        deviceY: Int
+    ): PointF {
+        val docPage = documentPage(pageIndex)
+        return withPageInDocument(docPage) {
+            pdfiumSDK!!.mapDeviceCoordinateToPage(
+                pdfDocument, docPage, startX, startY, sizeX, sizeY, 0, deviceX, deviceY
+            )
+        }
     }
 
+    /**
+     * Close the document, handles used by rendering threads right now are closed once they are released
+     */
     fun dispose() {
-        pdfiumSDK?.closeDocument(pdfDocument)
+        val handles: MutableList<DocumentHandle>
+        synchronized(handlesLock) {
+            disposed = true
+            handles = ArrayList(idleHandles)
+            if (primaryRetired) {
+                handles.add(primaryHandle!!)
+            }
+            idleHandles.clear()
+            handlesLock.notifyAll()
+        }
         pdfDocument = null
+        for (handle in handles) {
+            closeHandle(handle)
+        }
         originalUserPages = null
     }
 
@@ -407,6 +890,9 @@ class PdfFile internal constructor(
     }
 
     companion object {
-        private val lock = Any()
+        private val TAG = PdfFile::class.java.simpleName
+        private const val PAGE_NOT_OPENED = 0
+        private const val PAGE_OPENED = 1
+        private const val PAGE_FAILED = 2
     }
 }
\ No newline at end of file
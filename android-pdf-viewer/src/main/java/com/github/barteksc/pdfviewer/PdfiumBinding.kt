@@ -0,0 +1,26 @@
+package com.github.barteksc.pdfviewer
+
+import com.shockwave.pdfium.PdfiumCore
+import java.lang.reflect.Modifier
+
+/**
+ * Properties of the pdfium binding which decide how documents are opened
+ */
+internal object PdfiumBinding {
+
+    /**
+     * True only if [PdfiumCore] is known to call pdfium without a process wide lock, so pages can be rendered
+     * in parallel with separate handles of a document. Bindings serializing their native calls with a static
+     * `lock`, or which cannot be inspected, render one page at a time and extra handles would only take memory
+     */
+    @JvmStatic
+    val rendersInParallel: Boolean by lazy {
+        try {
+            val lock = PdfiumCore::class.java.getDeclaredField("lock")
+            !Modifier.isStatic(lock.modifiers)
+        } catch (e: NoSuchFieldException) {
+            // could be renamed by obfuscation as well, so it does not show the calls are not serialized
+            false
+        }
+    }
+}
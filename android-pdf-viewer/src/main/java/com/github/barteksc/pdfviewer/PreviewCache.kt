@@ -0,0 +1,127 @@
+package com.github.barteksc.pdfviewer
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.RectF
+import androidx.annotation.WorkerThread
+import com.github.barteksc.pdfviewer.util.Constants
+import java.io.File
+import kotlin.math.abs
+
+/**
+ * Keeps a downscaled render of the first shown page of recently opened documents together
+ * with the view layout it was shown in, so reopening a document can draw it immediately,
+ * while the document is still being decoded.
+ * Each preview is a single file of a [KeyedFileStore], trimmed by count in least recently used order.
+ */
+class PreviewCache private constructor(directory: File) {
+
+    private val store = KeyedFileStore(directory, "PDF preview cache", VERSION) {
+        Constants.Cache.PREVIEW_CACHE_SIZE
+    }
+
+    /**
+     * Position of the previewed page, with the view size and offsets it was shown with
+     */
+    class Layout(
+        @JvmField val viewWidth: Int,
+        @JvmField val viewHeight: Int,
+        @JvmField val page: Int,
+        @JvmField val xOffset: Float,
+        @JvmField val yOffset: Float,
+        @JvmField val zoom: Float,
+        /** Page bounds on the strip of pages, at [zoom] */
+        @JvmField val pageBounds: RectF
+    ) {
+
+        /**
+         * Check whether the page would be shown at the same place, with one pixel tolerance
+         */
+        fun matches(other: Layout): Boolean {
+            return viewWidth == other.viewWidth && viewHeight == other.viewHeight &&
+                    page == other.page && zoom == other.zoom &&
+                    abs(xOffset - other.xOffset) < 1 && abs(yOffset - other.yOffset) < 1 &&
+                    abs(pageBounds.left - other.pageBounds.left) < 1 &&
+                    abs(pageBounds.top - other.pageBounds.top) < 1 &&
+                    abs(pageBounds.right - other.pageBounds.right) < 1 &&
+                    abs(pageBounds.bottom - other.pageBounds.bottom) < 1
+        }
+    }
+
+    class Preview(@JvmField val bitmap: Bitmap, @JvmField val layout: Layout)
+
+    /**
+     * Read stored preview, blocking the calling thread
+     *
+     * @return preview or null if there is none or it cannot be read
+     */
+    @WorkerThread
+    fun get(name: String): Preview? {
+        return store.read(name) { input, _ ->
+            val layout = Layout(
+                input.readInt(), input.readInt(), input.readInt(),
+                input.readFloat(), input.readFloat(), input.readFloat(),
+                RectF(input.readFloat(), input.readFloat(), input.readFloat(), input.readFloat())
+            )
+            BitmapFactory.decodeStream(input)?.let { Preview(it, layout) }
+        }
+    }
+
+    /**
+     * Store preview in the background. The bitmap is owned by the cache
+     * from now on and recycled once it is written.
+     */
+    fun put(name: String, preview: Preview) {
+        store.write(name, { preview.bitmap.recycle() }) { output ->
+            val layout = preview.layout
+            output.writeInt(layout.viewWidth)
+            output.writeInt(layout.viewHeight)
+            output.writeInt(layout.page)
+            output.writeFloat(layout.xOffset)
+            output.writeFloat(layout.yOffset)
+            output.writeFloat(layout.zoom)
+            output.writeFloat(layout.pageBounds.left)
+            output.writeFloat(layout.pageBounds.top)
+            output.writeFloat(layout.pageBounds.right)
+            output.writeFloat(layout.pageBounds.bottom)
+            preview.bitmap.compress(Bitmap.CompressFormat.PNG, 100, output)
+        }
+    }
+
+    /**
+     * Remove all stored previews
+     */
+    fun clear() {
+        store.clear()
+    }
+
+    companion object {
+        private const val DIRECTORY = "pdfview-previews"
+        private const val VERSION = 1
+
+        @Volatile
+        private var instance: PreviewCache? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): PreviewCache {
+            return instance ?: synchronized(this) {
+                instance ?: PreviewCache(File(context.cacheDir, DIRECTORY)).also { instance = it }
+            }
+        }
+
+        /**
+         * Name of the preview of a document opened on given page, with given options
+         */
+        @JvmStatic
+        fun previewName(
+            fingerprint: String,
+            annotationRendering: Boolean,
+            userPages: IntArray?,
+            defaultPage: Int
+        ): String {
+            val name = DiskTileCache.namePrefix(fingerprint, annotationRendering) + "-" + defaultPage
+            return if (userPages == null) name else name + "-" + Integer.toHexString(userPages.contentHashCode())
+        }
+    }
+}
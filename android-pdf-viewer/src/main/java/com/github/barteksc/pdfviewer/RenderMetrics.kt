@@ -0,0 +1,65 @@
+package com.github.barteksc.pdfviewer
+
+/**
+ * Counters of the rendering queue and render durations of a [PDFView],
+ * kept for the life of the view, across loaded documents.
+ */
+internal class RenderMetrics {
+
+    private var queuedTasks = 0
+    private var droppedTasks = 0L
+    private var skippedTasks = 0L
+
+    private val partFastLatency = LatencyHistogram()
+    private val partBestLatency = LatencyHistogram()
+    private val thumbnailFastLatency = LatencyHistogram()
+    private val thumbnailBestLatency = LatencyHistogram()
+
+    val queueDepth: Int
+        @Synchronized get() = queuedTasks
+
+    val dropped: Long
+        @Synchronized get() = droppedTasks
+
+    val skipped: Long
+        @Synchronized get() = skippedTasks
+
+    @Synchronized
+    fun taskQueued() {
+        queuedTasks++
+    }
+
+    @Synchronized
+    fun taskStarted() {
+        queuedTasks--
+    }
+
+    /**
+     * Given number of queued tasks were removed before being processed
+     */
+    @Synchronized
+    fun tasksRemoved(count: Int) {
+        droppedTasks += count
+        queuedTasks -= count
+    }
+
+    /**
+     * Task taken by a rendering thread was not rendered, because its part is no longer wanted
+     */
+    @Synchronized
+    fun taskSkipped() {
+        skippedTasks++
+    }
+
+    fun recordRender(thumbnail: Boolean, bestQuality: Boolean, nanos: Long) {
+        getLatency(thumbnail, bestQuality).record(nanos)
+    }
+
+    fun getLatency(thumbnail: Boolean, bestQuality: Boolean): LatencyHistogram {
+        return if (thumbnail) {
+            if (bestQuality) thumbnailBestLatency else thumbnailFastLatency
+        } else {
+            if (bestQuality) partBestLatency else partFastLatency
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.github.barteksc.pdfviewer;
+
+/**
+ * Snapshot of cache and rendering statistics of a {@link PDFView}, see {@link PDFView#getRenderStats()}.
+ * Counters grow for the whole life of the view, disk counters are shared by all views of the process.
+ */
+public final class RenderStats {
+
+    /**
+     * Counters of one cache tier
+     */
+    public static final class Tier {
+
+        private final long hits;
+        private final long misses;
+        private final long promotions;
+        private final long evictions;
+        private final long residentBytes;
+
+        Tier(long hits, long misses, long promotions, long evictions, long residentBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.promotions = promotions;
+            this.evictions = evictions;
+            this.residentBytes = residentBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Number of hits which moved an entry from the passive to the active set, 0 for tiers without sets
+         */
+        public long getPromotions() {
+            return promotions;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Bytes of bitmaps held, or of files for the disk tier
+         */
+        public long getResidentBytes() {
+            return residentBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Tier{" +
+                    "hits=" + hits +
+                    ", misses=" + misses +
+                    ", promotions=" + promotions +
+                    ", evictions=" + evictions +
+                    ", residentBytes=" + residentBytes +
+                    '}';
+        }
+    }
+
+    private final Tier parts;
+    private final Tier thumbnails;
+    private final Tier bitmapPool;
+    private final Tier disk;
+    private final Tier shared;
+    private final int renderQueueDepth;
+    private final long droppedTasks;
+    private final long skippedTasks;
+    private final LatencyHistogram partFastLatency;
+    private final LatencyHistogram partBestLatency;
+    private final LatencyHistogram thumbnailFastLatency;
+    private final LatencyHistogram thumbnailBestLatency;
+    private final int residentPages;
+
+    RenderStats(Tier parts, Tier thumbnails, Tier bitmapPool, Tier disk, Tier shared,
+                int renderQueueDepth, long droppedTasks, long skippedTasks,
+                LatencyHistogram partFastLatency, LatencyHistogram partBestLatency,
+                LatencyHistogram thumbnailFastLatency, LatencyHistogram thumbnailBestLatency, int residentPages) {
+        this.parts = parts;
+        this.thumbnails = thumbnails;
+        this.bitmapPool = bitmapPool;
+        this.disk = disk;
+        this.shared = shared;
+        this.renderQueueDepth = renderQueueDepth;
+        this.droppedTasks = droppedTasks;
+        this.skippedTasks = skippedTasks;
+        this.partFastLatency = partFastLatency;
+        this.partBestLatency = partBestLatency;
+        this.thumbnailFastLatency = thumbnailFastLatency;
+        this.thumbnailBestLatency = thumbnailBestLatency;
+        this.residentPages = residentPages;
+    }
+
+    /**
+     * Rendered parts kept in memory, a hit is a part found when pages are loaded
+     */
+    public Tier getParts() {
+        return parts;
+    }
+
+    public Tier getThumbnails() {
+        return thumbnails;
+    }
+
+    /**
+     * Bitmaps of evicted parts waiting for reuse, a hit is a bitmap reused instead of allocated
+     */
+    public Tier getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Parts stored by {@link DiskTileCache}, empty if disk cache is not enabled
+     */
+    public Tier getDisk() {
+        return disk;
+    }
+
+    /**
+     * Parts shared by views showing the same document, empty if shared cache is not enabled.
+     * Evictions count bitmaps released by the last view holding them
+     */
+    public Tier getShared() {
+        return shared;
+    }
+
+    /**
+     * Total bytes of bitmaps held by memory tiers of this view
+     */
+    public long getResidentBytes() {
+        return parts.getResidentBytes() + thumbnails.getResidentBytes() + bitmapPool.getResidentBytes();
+    }
+
+    /**
+     * Number of rendering tasks waiting to be processed
+     */
+    public int getRenderQueueDepth() {
+        return renderQueueDepth;
+    }
+
+    /**
+     * Number of queued rendering tasks dropped before being processed, because visible pages changed
+     */
+    public long getDroppedTasks() {
+        return droppedTasks;
+    }
+
+    /**
+     * Number of rendering tasks already taken by a rendering thread, but skipped before rendering,
+     * because the view moved and their parts were no longer wanted
+     */
+    public long getSkippedTasks() {
+        return skippedTasks;
+    }
+
+    /**
+     * Render durations of parts or thumbnails, rendered in best quality or not
+     */
+    public LatencyHistogram getRenderLatency(boolean thumbnail, boolean bestQuality) {
+        if (thumbnail) {
+            return bestQuality ? thumbnailBestLatency : thumbnailFastLatency;
+        }
+        return bestQuality ? partBestLatency : partFastLatency;
+    }
+
+    /**
+     * Number of native pdfium pages open in all handles of the document, bounded by
+     * {@link com.github.barteksc.pdfviewer.util.Constants.Cache#MAX_OPEN_PAGES}
+     */
+    public int getResidentPages() {
+        return residentPages;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderStats{" +
+                "parts=" + parts +
+                ", thumbnails=" + thumbnails +
+                ", bitmapPool=" + bitmapPool +
+                ", disk=" + disk +
+                ", shared=" + shared +
+                ", renderQueueDepth=" + renderQueueDepth +
+                ", droppedTasks=" + droppedTasks +
+                ", skippedTasks=" + skippedTasks +
+                ", partFastLatency=" + partFastLatency +
+                ", partBestLatency=" + partBestLatency +
+                ", thumbnailFastLatency=" + thumbnailFastLatency +
+                ", thumbnailBestLatency=" + thumbnailBestLatency +
+                ", residentPages=" + residentPages +
+                '}';
+    }
+}
@@ -19,30 +19,91 @@
 package com.github.barteksc.pdfviewer
 
 import android.graphics.Bitmap
-import android.graphics.Matrix
 import android.graphics.Rect
 import android.graphics.RectF
-import android.os.Handler
-import android.os.Looper
-import android.os.Message
+import android.os.Process
+import android.os.SystemClock
 import android.util.Log
-import com.github.barteksc.pdfviewer.RenderingHandler.RenderingTask
+import android.util.SparseArray
 import com.github.barteksc.pdfviewer.exception.PageRenderingException
 import com.github.barteksc.pdfviewer.model.PagePart
+import com.github.barteksc.pdfviewer.model.TileKey
+import com.github.barteksc.pdfviewer.util.Constants
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
- * A [Handler] that will process incoming [RenderingTask] messages
- * and alert [PDFView.onBitmapRendered] when the portion of the
+ * Renders [RenderingTask]s on a pool of background threads
+ * and alerts [PDFView.onBitmapRendered] when the portion of the
  * PDF is ready to render.
+ * Threads render with separate document handles when the document source allows it,
+ * see [PdfFile.renderPageBitmap].
+ *
+ * Queued tasks are ordered by priority: thumbnails first, then visible parts and preloaded parts,
+ * each nearest to the center of the view first. Tasks are requested in passes, see [startPass],
+ * a task requested again keeps its place in the queue, the others are cancelled by [cancelUnrequested].
+ * Every task is stamped with the pass it was last requested in. A task a rendering thread has already taken
+ * is skipped, before opening its page and before rendering it, once a later pass did not request it.
+ * A part which is already queued or being rendered is never rendered twice, the running task
+ * takes over the cache order of the latest request instead.
+ *
+ * Draft tasks render a visible part quickly at lower resolution first, then the same task is queued again
+ * with [PRIORITY_REFINE] to render the final part, which replaces the draft in [CacheManager].
+ *
+ * A rendering thread takes queued neighbors of its task on the same page along, see [takeBatch],
+ * and renders them all in one call, which parses the page content once instead of once per part.
  */
-internal class RenderingHandler(looper: Looper?, private val pdfView: PDFView) : Handler(
-    looper!!
-) {
-    private val renderBounds = RectF()
-    private val roundedRenderBounds = Rect()
-    private val renderMatrix = Matrix()
+internal class RenderingHandler(private val pdfView: PDFView, threads: Int) {
+
+    private val threadCount = AtomicInteger()
+
+    private val queue = PriorityBlockingQueue<Runnable>()
+
+    private val executor = ThreadPoolExecutor(
+        threads, threads, 0L, TimeUnit.MILLISECONDS, queue
+    ) { runnable ->
+        Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, THREAD_NAME + "-" + threadCount.incrementAndGet())
+    }
+
+    /**
+     * Queued tasks by their tile key, guarded by itself
+     */
+    private val queuedTasks = LongHashMap<RenderingTask>(64)
+
+    /**
+     * Tasks being rendered right now by their tile key, guarded by [queuedTasks]
+     */
+    private val runningTasks = LongHashMap<RenderingTask>(16)
+
+    /**
+     * Bitmap configs of parts of pages classified by [PageFormatClassifier], guarded by itself
+     */
+    private val pageConfigs = SparseArray<Bitmap.Config>()
+
+    private var pass = 0
+
+    /**
+     * Last pass which requested all the tasks it wanted, tasks stamped with an older pass are stale
+     */
+    private var completedPass = 0
+
+    private var sequence = 0L
+
+    @Volatile
     private var running = false
+
+    init {
+        // tasks are put to the queue directly when their priority changes
+        executor.prestartAllCoreThreads()
+    }
+
     fun addRenderingTask(
+        key: Long,
         page: Int,
         width: Float,
         height: Float,
@@ -50,83 +111,461 @@ internal class RenderingHandler(looper: Looper?, private val pdfView: PDFView) :
         thumbnail: Boolean,
         cacheOrder: Int,
         bestQuality: Boolean,
-        annotationRendering: Boolean
+        annotationRendering: Boolean,
+        priority: Int,
+        distance: Float,
+        draft: Boolean
     ) {
-        val task = RenderingTask(
-            width,
-            height,
-            bounds,
-            page,
-            thumbnail,
-            cacheOrder,
-            bestQuality,
-            annotationRendering
-        )
-        val msg = obtainMessage(MSG_RENDER_TASK, task)
-        sendMessage(msg)
+        if (!running) {
+            return
+        }
+        synchronized(queuedTasks) {
+            val rendering = runningTasks[key]
+            if (rendering != null && rendering.isSameRender(bestQuality, annotationRendering)) {
+                // rendered part will be cached in the order of the latest request
+                rendering.cacheOrder = cacheOrder
+                rendering.pass = pass
+                return
+            }
+            val queued = queuedTasks[key]
+            if (queued != null && queued.isSameRender(bestQuality, annotationRendering)) {
+                queued.cacheOrder = cacheOrder
+                queued.pass = pass
+                // task taken by a rendering thread, which has not started it yet, cannot be requeued
+                if (queue.remove(queued)) {
+                    // still wanted, update it with the latest request, drafts are not rendered again
+                    queued.priority = if (queued.refining) Math.max(priority, PRIORITY_REFINE) else priority
+                    queued.distance = distance
+                    queue.add(queued)
+                }
+                return
+            }
+            val task = RenderingTask(
+                key,
+                width,
+                height,
+                bounds,
+                page,
+                thumbnail,
+                cacheOrder,
+                bestQuality,
+                annotationRendering
+            )
+            task.priority = priority
+            task.distance = distance
+            task.pass = pass
+            task.sequence = sequence++
+            task.draft = draft
+            queuedTasks.put(key, task)
+            pdfView.renderMetrics.taskQueued()
+            executor.execute(task)
+        }
+    }
+
+    /**
+     * Start a new pass of requests, tasks not requested again until [cancelUnrequested] are cancelled
+     */
+    fun startPass() {
+        synchronized(queuedTasks) {
+            pass++
+        }
+    }
+
+    /**
+     * Cancel queued tasks which were not requested in the current pass
+     */
+    fun cancelUnrequested() {
+        var removed = 0
+        synchronized(queuedTasks) {
+            completedPass = pass
+            for (runnable in queue.toArray()) {
+                val task = runnable as RenderingTask
+                if (task.pass != pass && queue.remove(task)) {
+                    queuedTasks.remove(task.key)
+                    removed++
+                }
+            }
+        }
+        pdfView.renderMetrics.tasksRemoved(removed)
     }
 
-    override fun handleMessage(message: Message) {
-        val task = message.obj as RenderingTask
+    /**
+     * Get bitmap config parts of the page are rendered with. In best quality mode it is chosen
+     * per page from its thumbnail, [Bitmap.Config.ARGB_8888] until the thumbnail is rendered
+     */
+    fun getPartConfig(page: Int, bestQuality: Boolean): Bitmap.Config {
+        if (!bestQuality) {
+            return Bitmap.Config.RGB_565
+        }
+        synchronized(pageConfigs) {
+            return pageConfigs.get(page, Bitmap.Config.ARGB_8888)
+        }
+    }
+
+    /**
+     * Check whether the task was not requested by the last completed pass, so its part is no longer wanted
+     */
+    private fun isStale(task: RenderingTask): Boolean {
+        synchronized(queuedTasks) {
+            return task.pass < completedPass
+        }
+    }
+
+    /**
+     * Drop all tasks which have not been processed yet
+     */
+    fun removeRenderingTasks() {
+        val removed = ArrayList<Runnable>()
+        synchronized(queuedTasks) {
+            queue.drainTo(removed)
+            queuedTasks.clear()
+        }
+        pdfView.renderMetrics.tasksRemoved(removed.size)
+    }
+
+    private fun render(task: RenderingTask) {
+        val batch = takeBatch(task)
+        for (i in batch.indices) {
+            pdfView.renderMetrics.taskStarted()
+        }
+        if (!running) {
+            batch.forEach { finish(it) }
+            return
+        }
         try {
-            val part = proceed(task)
-            if (part != null) {
+            val start = SystemClock.elapsedRealtimeNanos()
+            val parts = if (batch.size == 1) listOfNotNull(proceed(task)) else proceedBatch(batch)
+            // parts of a batch share the time of a single render
+            val nanos = (SystemClock.elapsedRealtimeNanos() - start) / Math.max(1, parts.size)
+            for (part in parts) {
+                pdfView.renderMetrics.recordRender(part.isThumbnail, task.bestQuality && !part.isDraft, nanos)
                 if (running) {
-                    pdfView.post { pdfView.onBitmapRendered(part) }
+                    pdfView.postRenderedPart(this, part)
                 } else {
-                    part.renderedBitmap.recycle()
+                    pdfView.recyclePart(part)
                 }
             }
         } catch (ex: PageRenderingException) {
             pdfView.post { pdfView.onPageError(ex) }
+        } finally {
+            batch.forEach { finish(it) }
+        }
+    }
+
+    /**
+     * Mark the task as running together with queued parts next to it in the grid of its page,
+     * which are rendered with it in a single call, see [Constants.Batch].
+     * The batch grows by rows and columns as long as at least [Constants.Batch.MIN_COVERAGE]
+     * of its cells are requested parts, so that few discarded pixels are rendered.
+     */
+    private fun takeBatch(task: RenderingTask): List<RenderingTask> {
+        synchronized(queuedTasks) {
+            if (queuedTasks[task.key] === task) {
+                queuedTasks.remove(task.key)
+            }
+            runningTasks.put(task.key, task)
+            if (task.thumbnail || Constants.Batch.MAX_TILES <= 1) {
+                return listOf(task)
+            }
+            val row = TileKey.row(task.key)
+            val col = TileKey.col(task.key)
+            var top = row
+            var bottom = row
+            var left = col
+            var right = col
+            var requested = 1
+            var grown = true
+            while (grown) {
+                grown = false
+                for (side in 0 until 4) {
+                    val newTop = if (side == 0) top - 1 else top
+                    val newBottom = if (side == 1) bottom + 1 else bottom
+                    val newLeft = if (side == 2) left - 1 else left
+                    val newRight = if (side == 3) right + 1 else right
+                    if (newTop < 0 || newLeft < 0 || newBottom > TileKey.MAX_CELL || newRight > TileKey.MAX_CELL) {
+                        continue
+                    }
+                    val cells = (newBottom - newTop + 1) * (newRight - newLeft + 1)
+                    if (cells > Constants.Batch.MAX_TILES) {
+                        continue
+                    }
+                    val added = if (side < 2) {
+                        countBatchable(task, if (side == 0) newTop else newBottom, left, right, true)
+                    } else {
+                        countBatchable(task, if (side == 2) newLeft else newRight, top, bottom, false)
+                    }
+                    if (added == 0 || requested + added < cells * Constants.Batch.MIN_COVERAGE) {
+                        continue
+                    }
+                    top = newTop
+                    bottom = newBottom
+                    left = newLeft
+                    right = newRight
+                    requested += added
+                    grown = true
+                }
+            }
+            if (requested == 1) {
+                return listOf(task)
+            }
+            val batch = ArrayList<RenderingTask>(requested)
+            batch.add(task)
+            for (r in top..bottom) {
+                for (c in left..right) {
+                    val neighbor = getBatchable(task, r, c)
+                    // task taken by another rendering thread, which has not started it yet, cannot be batched
+                    if (neighbor != null && queue.remove(neighbor)) {
+                        queuedTasks.remove(neighbor.key)
+                        runningTasks.put(neighbor.key, neighbor)
+                        batch.add(neighbor)
+                    }
+                }
+            }
+            return batch
+        }
+    }
+
+    /**
+     * Count queued tasks which can be rendered with given task in a row or a column of cells of its page
+     */
+    private fun countBatchable(task: RenderingTask, line: Int, from: Int, to: Int, row: Boolean): Int {
+        var count = 0
+        for (i in from..to) {
+            if ((if (row) getBatchable(task, line, i) else getBatchable(task, i, line)) != null) {
+                count++
+            }
+        }
+        return count
+    }
+
+    private fun getBatchable(task: RenderingTask, row: Int, col: Int): RenderingTask? {
+        val key = TileKey.of(task.page, TileKey.zoomLevel(task.key), row, col)
+        if (key == task.key) {
+            return null
+        }
+        val neighbor = queuedTasks[key] ?: return null
+        // parts needed sooner are not delayed by rendering them together with parts needed later
+        return if (neighbor.isSameRender(task.bestQuality, task.annotationRendering) &&
+            neighbor.draft == task.draft && neighbor.priority == task.priority
+        ) neighbor else null
+    }
+
+    /**
+     * Stop tracking the task as running, so the part can be requested again.
+     * Rendered draft is followed by the final part, the task is queued again for it.
+     *
+     * @return cache order of the latest request of the part
+     */
+    private fun finish(task: RenderingTask, rendered: Boolean = false): Int {
+        synchronized(queuedTasks) {
+            if (runningTasks[task.key] === task) {
+                runningTasks.remove(task.key)
+                if (rendered && task.draft && running && queuedTasks[task.key] == null) {
+                    task.draft = false
+                    task.refining = true
+                    task.priority = Math.max(task.priority, PRIORITY_REFINE)
+                    queuedTasks.put(task.key, task)
+                    pdfView.renderMetrics.taskQueued()
+                    queue.add(task)
+                }
+            }
+            return task.cacheOrder
         }
     }
 
     @Throws(PageRenderingException::class)
     private fun proceed(renderingTask: RenderingTask): PagePart? {
-        val pdfFile = pdfView.pdfFile
+        // document may have been recycled while the task was waiting
+        val pdfFile = pdfView.pdfFile ?: return null
+        if (isStale(renderingTask)) {
+            pdfView.renderMetrics.taskSkipped()
+            return null
+        }
         pdfFile.openPage(renderingTask.page)
-        val w = Math.round(renderingTask.width)
-        val h = Math.round(renderingTask.height)
+        val draft = renderingTask.draft
+        val scale = if (draft) Constants.DRAFT_SCALE else 1f
+        val w = Math.round(renderingTask.width * scale)
+        val h = Math.round(renderingTask.height * scale)
         if (w == 0 || h == 0 || pdfFile.pageHasError(renderingTask.page)) {
             return null
         }
+        val config = getRenderConfig(renderingTask)
         val render: Bitmap
         render = try {
-            Bitmap.createBitmap(
-                w,
-                h,
-                if (renderingTask.bestQuality) Bitmap.Config.ARGB_8888 else Bitmap.Config.RGB_565
-            )
+            pdfView.bitmapPool.obtain(w, h, config)
         } catch (e: IllegalArgumentException) {
             Log.e(TAG, "Cannot create bitmap", e)
             return null
         }
-        calculateBounds(w, h, renderingTask.bounds)
+        if (isStale(renderingTask)) {
+            // view moved while the page was opened
+            pdfView.bitmapPool.put(render)
+            pdfView.renderMetrics.taskSkipped()
+            return null
+        }
         pdfFile.renderPageBitmap(
             render,
             renderingTask.page,
-            roundedRenderBounds,
+            calculateBounds(w, h, renderingTask.bounds),
             renderingTask.annotationRendering
         )
+        if (renderingTask.thumbnail && config == Bitmap.Config.ARGB_8888) {
+            val partConfig = PageFormatClassifier.classify(render)
+            synchronized(pageConfigs) {
+                pageConfigs.put(renderingTask.page, partConfig)
+            }
+        }
+        val slot = if (!renderingTask.thumbnail && pdfView.isTileAtlasEnabled) obtainSlot(w, h, config) else null
+        if (slot != null) {
+            // pdfium fills the whole target bitmap, so the part is rendered aside and copied into its slot
+            pdfView.tileAtlas.copy(render, slot)
+            pdfView.bitmapPool.put(render)
+            return PagePart(
+                renderingTask.key, renderingTask.page, slot.sheet,
+                renderingTask.bounds, false,
+                finish(renderingTask, true), draft, slot.bounds
+            )
+        }
         return PagePart(
-            renderingTask.page, render,
+            renderingTask.key, renderingTask.page, render,
             renderingTask.bounds, renderingTask.thumbnail,
-            renderingTask.cacheOrder
+            finish(renderingTask, true), draft
         )
     }
 
-    private fun calculateBounds(width: Int, height: Int, pageSliceBounds: RectF) {
-        renderMatrix.reset()
-        renderMatrix.postTranslate(-pageSliceBounds.left * width, -pageSliceBounds.top * height)
-        renderMatrix.postScale(1 / pageSliceBounds.width(), 1 / pageSliceBounds.height())
-        renderBounds[0f, 0f, width.toFloat()] = height.toFloat()
-        renderMatrix.mapRect(renderBounds)
-        renderBounds.round(roundedRenderBounds)
+    /**
+     * Render tasks of adjacent parts of the same page in a single call into a bitmap covering all of them,
+     * then copy every part out of it, so the page content is processed once for the whole batch
+     */
+    @Throws(PageRenderingException::class)
+    private fun proceedBatch(batch: List<RenderingTask>): List<PagePart> {
+        val pdfFile = pdfView.pdfFile ?: return emptyList()
+        val tasks = batch.filter { task ->
+            val stale = isStale(task)
+            if (stale) {
+                pdfView.renderMetrics.taskSkipped()
+            }
+            !stale
+        }
+        if (tasks.size <= 1) {
+            return if (tasks.isEmpty()) emptyList() else listOfNotNull(proceed(tasks[0]))
+        }
+        val head = tasks[0]
+        pdfFile.openPage(head.page)
+        if (pdfFile.pageHasError(head.page)) {
+            return emptyList()
+        }
+        // tasks of a batch are all drafts or all final parts, finish() requeues drafts as final ones
+        val draft = head.draft
+        val scale = if (draft) Constants.DRAFT_SCALE else 1f
+        // all parts of a zoom level are rendered at the same resolution
+        val scaleX = head.width * scale / head.bounds.width()
+        val scaleY = head.height * scale / head.bounds.height()
+        val bounds = RectF(head.bounds)
+        tasks.forEach { bounds.union(it.bounds) }
+        val w = Math.round(bounds.width() * scaleX)
+        val h = Math.round(bounds.height() * scaleY)
+        if (w == 0 || h == 0) {
+            return emptyList()
+        }
+        val config = getRenderConfig(head)
+        val render: Bitmap = try {
+            pdfView.bitmapPool.obtain(w, h, config)
+        } catch (e: IllegalArgumentException) {
+            Log.e(TAG, "Cannot create bitmap", e)
+            return emptyList()
+        }
+        if (tasks.any { isStale(it) }) {
+            // view moved meanwhile, render the union of the tasks still wanted only
+            pdfView.bitmapPool.put(render)
+            return proceedBatch(tasks)
+        }
+        pdfFile.renderPageBitmap(render, head.page, calculateBounds(w, h, bounds), head.annotationRendering)
+
+        val parts = ArrayList<PagePart>(tasks.size)
+        for (task in tasks) {
+            // parts no longer wanted once rendered are not cached
+            if (isStale(task)) {
+                pdfView.renderMetrics.taskSkipped()
+                continue
+            }
+            val left = Math.round((task.bounds.left - bounds.left) * scaleX)
+            val top = Math.round((task.bounds.top - bounds.top) * scaleY)
+            val area = Rect(
+                left, top,
+                Math.min(w, left + Math.round(task.width * scale)),
+                Math.min(h, top + Math.round(task.height * scale))
+            )
+            if (area.isEmpty) {
+                continue
+            }
+            val slot = if (pdfView.isTileAtlasEnabled) obtainSlot(area.width(), area.height(), config) else null
+            if (slot != null) {
+                pdfView.tileAtlas.copy(render, area, slot)
+                parts.add(
+                    PagePart(
+                        task.key, task.page, slot.sheet, task.bounds, false,
+                        finish(task, true), draft, slot.bounds
+                    )
+                )
+                continue
+            }
+            val part: Bitmap = try {
+                pdfView.bitmapPool.obtain(area.width(), area.height(), config)
+            } catch (e: IllegalArgumentException) {
+                Log.e(TAG, "Cannot create bitmap", e)
+                continue
+            }
+            pdfView.tileAtlas.copyOut(render, area, part)
+            parts.add(PagePart(task.key, task.page, part, task.bounds, false, finish(task, true), draft))
+        }
+        pdfView.bitmapPool.put(render)
+        return parts
+    }
+
+    private fun getRenderConfig(task: RenderingTask): Bitmap.Config {
+        return when {
+            task.draft -> Bitmap.Config.RGB_565
+            task.thumbnail -> if (task.bestQuality) Bitmap.Config.ARGB_8888 else Bitmap.Config.RGB_565
+            else -> getPartConfig(task.page, task.bestQuality)
+        }
+    }
+
+    /**
+     * @return slot of the tile atlas or null if the part is kept in its own bitmap
+     */
+    private fun obtainSlot(width: Int, height: Int, config: Bitmap.Config): TileAtlas.Slot? {
+        return try {
+            pdfView.tileAtlas.obtain(width, height, config)
+        } catch (e: IllegalArgumentException) {
+            Log.e(TAG, "Cannot create atlas sheet", e)
+            null
+        }
+    }
+
+    /**
+     * Bounds of the whole page in bitmap coordinates, so that the slice fills the bitmap
+     */
+    private fun calculateBounds(width: Int, height: Int, pageSliceBounds: RectF): Rect {
+        val scaleX = width / pageSliceBounds.width()
+        val scaleY = height / pageSliceBounds.height()
+        val left = -pageSliceBounds.left * scaleX
+        val top = -pageSliceBounds.top * scaleY
+        return Rect(
+            Math.round(left),
+            Math.round(top),
+            Math.round(left + scaleX),
+            Math.round(top + scaleY)
+        )
     }
 
+    /**
+     * Stop rendering, tasks which are being rendered right now are finished and their bitmaps recycled
+     */
     fun stop() {
         running = false
+        removeRenderingTasks()
+        executor.shutdown()
     }
 
     fun start() {
@@ -134,6 +573,7 @@ internal class RenderingHandler(looper: Looper?, private val pdfView: PDFView) :
     }
 
     private inner class RenderingTask(
+        var key: Long,
         var width: Float,
         var height: Float,
         var bounds: RectF,
@@ -142,13 +582,59 @@ internal class RenderingHandler(looper: Looper?, private val pdfView: PDFView) :
         var cacheOrder: Int,
         var bestQuality: Boolean,
         var annotationRendering: Boolean
-    )
+    ) : Runnable, Comparable<RenderingTask> {
+        var priority = PRIORITY_VISIBLE
+        var draft = false
+
+        /**
+         * True if the draft was rendered and the task renders the final part
+         */
+        var refining = false
+        var distance = 0f
+        var pass = 0
+        var sequence = 0L
+
+        fun isSameRender(bestQuality: Boolean, annotationRendering: Boolean): Boolean {
+            return this.bestQuality == bestQuality && this.annotationRendering == annotationRendering
+        }
+
+        override fun run() {
+            render(this)
+        }
+
+        override fun compareTo(other: RenderingTask): Int {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority)
+            }
+            if (distance != other.distance) {
+                return distance.compareTo(other.distance)
+            }
+            return sequence.compareTo(other.sequence)
+        }
+    }
 
     companion object {
         /**
-         * [Message.what] kind of message this handler processes.
+         * Thumbnails of pages, rendered first so that no page stays blank
+         */
+        const val PRIORITY_THUMBNAIL = 0
+
+        /**
+         * Parts on the screen
          */
-        const val MSG_RENDER_TASK = 1
+        const val PRIORITY_VISIBLE = 1
+
+        /**
+         * Final parts replacing drafts on the screen
+         */
+        const val PRIORITY_REFINE = 2
+
+        /**
+         * Parts rendered ahead, outside of the screen
+         */
+        const val PRIORITY_PRELOAD = 3
+
+        private const val THREAD_NAME = "PDF renderer"
         private val TAG = RenderingHandler::class.java.name
     }
-}
\ No newline at end of file
+}
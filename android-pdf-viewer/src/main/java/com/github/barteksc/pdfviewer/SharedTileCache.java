@@ -0,0 +1,110 @@
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Process wide registry of rendered bitmaps, so views showing the same document with the same
+ * render parameters can use each other's parts instead of rendering them again.
+ * Bitmaps are named like {@link DiskTileCache#tileName}, which covers document, document page, bounds,
+ * size and config. Each bitmap is reference counted by the views holding it and can be
+ * reused or recycled only by the view releasing the last reference.
+ */
+class SharedTileCache {
+
+    private static final SharedTileCache INSTANCE = new SharedTileCache();
+
+    private static final class Entry {
+        final String name;
+        final Bitmap bitmap;
+        int references = 1;
+
+        Entry(String name, Bitmap bitmap) {
+            this.name = name;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    private final IdentityHashMap<Bitmap, Entry> entriesByBitmap = new IdentityHashMap<>();
+
+    private long sharedBytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long releases = 0;
+
+    private SharedTileCache() {
+    }
+
+    static SharedTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Make bitmap held by the calling view available to other views. Does nothing if
+     * the bitmap is already shared or other bitmap is shared under the same name,
+     * in which case the bitmap stays private to the caller.
+     */
+    public synchronized void publish(String name, Bitmap bitmap) {
+        if (entriesByBitmap.containsKey(bitmap) || entries.containsKey(name)) {
+            return;
+        }
+        Entry entry = new Entry(name, bitmap);
+        entries.put(name, entry);
+        entriesByBitmap.put(bitmap, entry);
+        sharedBytes += bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * Get shared bitmap, which must be released by the caller once it is not needed
+     *
+     * @return bitmap or null if no view holds it
+     */
+    @Nullable
+    public synchronized Bitmap acquire(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.bitmap.isRecycled()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.references++;
+        return entry.bitmap;
+    }
+
+    /**
+     * Give up a bitmap held by the calling view
+     *
+     * @return true if no other view holds the bitmap, so the caller may reuse or recycle it
+     */
+    public synchronized boolean release(Bitmap bitmap) {
+        Entry entry = entriesByBitmap.get(bitmap);
+        if (entry == null) {
+            return true;
+        }
+        if (--entry.references > 0) {
+            return false;
+        }
+        entries.remove(entry.name);
+        entriesByBitmap.remove(bitmap);
+        sharedBytes -= bitmap.getAllocationByteCount();
+        releases++;
+        return true;
+    }
+
+    /**
+     * Misses count lookups of parts not held by any view, evictions count bitmaps
+     * released by their last holder
+     */
+    public synchronized RenderStats.Tier getStats() {
+        return new RenderStats.Tier(hits, misses, 0, releases, sharedBytes);
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps parts in fixed-size slots of a few large sheet bitmaps instead of a bitmap per part,
+ * which cuts native allocations and lets parts of the same sheet be drawn from one texture.
+ * Parts are drawn from the sheet with their source rect, see {@link com.github.barteksc.pdfviewer.model.PagePart#getSourceRect()}.
+ */
+class TileAtlas {
+
+    private final Paint copyPaint = new Paint();
+
+    /**
+     * Side of a slot, parts bigger than that are not kept in the atlas
+     */
+    private final int slotSize;
+
+    /**
+     * Number of slots along a side of a sheet
+     */
+    private final int sheetSlots;
+
+    private final List<Sheet> sheets = new ArrayList<>();
+
+    public TileAtlas(int slotSize, int sheetSize) {
+        this.slotSize = slotSize;
+        this.sheetSlots = Math.max(1, sheetSize / slotSize);
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * Reserve a slot for a part of given size and config, allocating a new sheet if all are full
+     *
+     * @return reserved slot or null if part does not fit into a slot
+     * @throws IllegalArgumentException if sheet cannot be created
+     */
+    @Nullable
+    public synchronized Slot obtain(int width, int height, Bitmap.Config config) {
+        if (width > slotSize || height > slotSize) {
+            return null;
+        }
+        Sheet sheet = null;
+        for (Sheet candidate : sheets) {
+            if (!candidate.detached && candidate.config == config && candidate.used < candidate.freeSlots.length) {
+                sheet = candidate;
+                break;
+            }
+        }
+        if (sheet == null) {
+            sheet = new Sheet(Bitmap.createBitmap(sheetSlots * slotSize, sheetSlots * slotSize, config), config,
+                    sheetSlots * sheetSlots);
+            sheets.add(sheet);
+        }
+        int slot = sheet.freeSlots[sheet.used++];
+        int left = (slot % sheetSlots) * slotSize;
+        int top = (slot / sheetSlots) * slotSize;
+        return new Slot(sheet.bitmap, new Rect(left, top, left + width, top + height));
+    }
+
+    /**
+     * Copy rendered part into given slot
+     */
+    public void copy(Bitmap part, Slot slot) {
+        // slots do not overlap, so parts can be copied into the same sheet from many threads
+        new Canvas(slot.sheet).drawBitmap(part, slot.bounds.left, slot.bounds.top, copyPaint);
+    }
+
+    /**
+     * Copy given area of a bitmap, e.g. of a batch of parts, into given slot
+     */
+    public void copy(Bitmap source, Rect sourceRect, Slot slot) {
+        new Canvas(slot.sheet).drawBitmap(source, sourceRect, slot.bounds, copyPaint);
+    }
+
+    /**
+     * Copy given area of a bitmap, e.g. a part out of its slot, into the whole target bitmap
+     */
+    public void copyOut(Bitmap sheet, Rect sourceRect, Bitmap target) {
+        new Canvas(target).drawBitmap(sheet, sourceRect, new Rect(0, 0, target.getWidth(), target.getHeight()),
+                copyPaint);
+    }
+
+    /**
+     * Free slot of a part which is no longer drawn
+     */
+    public synchronized void release(Bitmap sheetBitmap, Rect sourceRect) {
+        Iterator<Sheet> iterator = sheets.iterator();
+        while (iterator.hasNext()) {
+            Sheet sheet = iterator.next();
+            if (sheet.bitmap == sheetBitmap) {
+                int slot = (sourceRect.top / slotSize) * sheetSlots + sourceRect.left / slotSize;
+                sheet.freeSlots[--sheet.used] = slot;
+                if (sheet.used == 0 && sheet.detached) {
+                    iterator.remove();
+                    sheet.bitmap.recycle();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Recycle sheets without used slots
+     */
+    public synchronized void trim() {
+        Iterator<Sheet> iterator = sheets.iterator();
+        while (iterator.hasNext()) {
+            Sheet sheet = iterator.next();
+            if (sheet.used == 0) {
+                iterator.remove();
+                sheet.bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Recycle all sheets, those with parts still being rendered once their slots are released
+     */
+    public synchronized void clear() {
+        for (Sheet sheet : sheets) {
+            sheet.detached = true;
+        }
+        trim();
+    }
+
+    /**
+     * Get number of bytes allocated by sheets, including free slots
+     */
+    public synchronized long getAllocatedBytes() {
+        long bytes = 0;
+        for (Sheet sheet : sheets) {
+            bytes += sheet.bitmap.getAllocationByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * Area of a sheet reserved for a part
+     */
+    static class Slot {
+
+        final Bitmap sheet;
+
+        final Rect bounds;
+
+        Slot(Bitmap sheet, Rect bounds) {
+            this.sheet = sheet;
+            this.bounds = bounds;
+        }
+    }
+
+    private static class Sheet {
+
+        final Bitmap bitmap;
+
+        final Bitmap.Config config;
+
+        /**
+         * Slot indexes, those from {@link #used} on are free
+         */
+        final int[] freeSlots;
+
+        int used = 0;
+
+        /**
+         * Sheet is recycled once all its slots are free and it takes no new parts
+         */
+        boolean detached = false;
+
+        Sheet(Bitmap bitmap, Bitmap.Config config, int slots) {
+            this.bitmap = bitmap;
+            this.config = config;
+            this.freeSlots = new int[slots];
+            for (int i = 0; i < slots; i++) {
+                freeSlots[i] = i;
+            }
+        }
+    }
+}
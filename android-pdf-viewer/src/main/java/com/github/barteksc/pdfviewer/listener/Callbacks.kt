@@ -20,6 +20,7 @@ package com.github.barteksc.pdfviewer.listener
  */
 
 import android.view.MotionEvent
+import com.github.barteksc.pdfviewer.RenderStats
 
 class Callbacks {
     /**
@@ -69,6 +70,11 @@ class Callbacks {
      */
     var onLongPressListener: OnLongPressListener? = null
 
+    /**
+     * Call back object to call with cache and rendering statistics
+     */
+    var onRenderStatsListener: OnRenderStatsListener? = null
+
     fun callOnLoadComplete(pagesCount: Int) {
         if (onLoadCompleteListener != null) {
             onLoadCompleteListener!!.loadComplete(pagesCount)
@@ -108,4 +114,8 @@ class Callbacks {
     fun callOnLongPress(event: MotionEvent?) {
         onLongPressListener?.onLongPress(event)
     }
+
+    fun callOnRenderStats(stats: RenderStats) {
+        onRenderStatsListener?.onRenderStats(stats)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package com.github.barteksc.pdfviewer.listener;
+
+import com.github.barteksc.pdfviewer.RenderStats;
+
+public interface OnRenderStatsListener {
+
+    /**
+     * Called on the main thread while parts are being rendered,
+     * at most once per {@link com.github.barteksc.pdfviewer.util.Constants#STATS_INTERVAL}
+     *
+     * @param stats snapshot of cache and rendering statistics
+     */
+    void onRenderStats(RenderStats stats);
+}
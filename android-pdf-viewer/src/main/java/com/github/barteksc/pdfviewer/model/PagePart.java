@@ -16,10 +16,13 @@
 package com.github.barteksc.pdfviewer.model;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.RectF;
 
 public class PagePart {
 
+    private long key;
+
     private int page;
 
     private Bitmap renderedBitmap;
@@ -30,13 +33,37 @@ public class PagePart {
 
     private int cacheOrder;
 
-    public PagePart(int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder) {
+    private boolean draft;
+
+    private Rect sourceRect;
+
+    public PagePart(long key, int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder) {
+        this(key, page, renderedBitmap, pageRelativeBounds, thumbnail, cacheOrder, false);
+    }
+
+    public PagePart(long key, int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder,
+                    boolean draft) {
+        this(key, page, renderedBitmap, pageRelativeBounds, thumbnail, cacheOrder, draft, null);
+    }
+
+    public PagePart(long key, int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder,
+                    boolean draft, Rect sourceRect) {
         super();
+        this.key = key;
         this.page = page;
         this.renderedBitmap = renderedBitmap;
         this.pageRelativeBounds = pageRelativeBounds;
         this.thumbnail = thumbnail;
         this.cacheOrder = cacheOrder;
+        this.draft = draft;
+        this.sourceRect = sourceRect;
+    }
+
+    /**
+     * @see TileKey
+     */
+    public long getKey() {
+        return key;
     }
 
     public int getCacheOrder() {
@@ -59,6 +86,21 @@ public class PagePart {
         return thumbnail;
     }
 
+    /**
+     * @return true if part was rendered quickly at lower quality and will be replaced by the final one
+     */
+    public boolean isDraft() {
+        return draft;
+    }
+
+    /**
+     * @return bounds of the part in the rendered bitmap if the bitmap is a sheet of the tile atlas
+     * shared with other parts, null if the part takes the whole bitmap
+     */
+    public Rect getSourceRect() {
+        return sourceRect;
+    }
+
     public void setCacheOrder(int cacheOrder) {
         this.cacheOrder = cacheOrder;
     }
@@ -70,11 +112,12 @@ public class PagePart {
         }
 
         PagePart part = (PagePart) obj;
-        return part.getPage() == page
-                && part.getPageRelativeBounds().left == pageRelativeBounds.left
-                && part.getPageRelativeBounds().right == pageRelativeBounds.right
-                && part.getPageRelativeBounds().top == pageRelativeBounds.top
-                && part.getPageRelativeBounds().bottom == pageRelativeBounds.bottom;
+        return part.getKey() == key;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (key ^ (key >>> 32));
     }
 
 }
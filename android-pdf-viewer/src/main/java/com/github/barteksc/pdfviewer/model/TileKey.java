@@ -0,0 +1,80 @@
+package com.github.barteksc.pdfviewer.model;
+
+/**
+ * Identity of a {@link PagePart} packed into a primitive long, so parts can be looked up
+ * without allocating.
+ * <p>
+ * Layout, from the most significant bit: thumbnail flag (1 bit), page (23 bits),
+ * zoom level (8 bits, two's complement), row (16 bits), col (16 bits).
+ */
+public final class TileKey {
+
+    private static final int COL_BITS = 16;
+    private static final int ROW_BITS = 16;
+    private static final int ZOOM_LEVEL_BITS = 8;
+    private static final int PAGE_BITS = 23;
+
+    private static final int ROW_SHIFT = COL_BITS;
+    private static final int ZOOM_LEVEL_SHIFT = ROW_SHIFT + ROW_BITS;
+    private static final int PAGE_SHIFT = ZOOM_LEVEL_SHIFT + ZOOM_LEVEL_BITS;
+    private static final int THUMBNAIL_SHIFT = PAGE_SHIFT + PAGE_BITS;
+
+    /**
+     * Maximum row and column of a part
+     */
+    public static final int MAX_CELL = (1 << COL_BITS) - 1;
+
+    private TileKey() {
+        // Prevents instantiation
+    }
+
+    /**
+     * Key of a part in cell (row, col) of the page grid of given zoom level
+     *
+     * @throws IllegalArgumentException if any value does not fit into its bits, so keys of different parts never collide
+     */
+    public static long of(int page, int zoomLevel, int row, int col) {
+        if (page < 0 || page > mask(PAGE_BITS)
+                || zoomLevel < -(1 << (ZOOM_LEVEL_BITS - 1)) || zoomLevel >= 1 << (ZOOM_LEVEL_BITS - 1)
+                || row < 0 || row > MAX_CELL || col < 0 || col > MAX_CELL) {
+            throw new IllegalArgumentException("Part out of key range: page " + page + ", zoom level " + zoomLevel
+                    + ", row " + row + ", col " + col);
+        }
+        return ((long) (page & mask(PAGE_BITS)) << PAGE_SHIFT)
+                | ((long) (zoomLevel & mask(ZOOM_LEVEL_BITS)) << ZOOM_LEVEL_SHIFT)
+                | ((long) (row & mask(ROW_BITS)) << ROW_SHIFT)
+                | (col & mask(COL_BITS));
+    }
+
+    /**
+     * Key of the thumbnail covering the whole page
+     */
+    public static long thumbnail(int page) {
+        return (1L << THUMBNAIL_SHIFT) | ((long) (page & mask(PAGE_BITS)) << PAGE_SHIFT);
+    }
+
+    public static boolean isThumbnail(long key) {
+        return (key >>> THUMBNAIL_SHIFT) != 0;
+    }
+
+    public static int page(long key) {
+        return (int) (key >>> PAGE_SHIFT) & mask(PAGE_BITS);
+    }
+
+    public static int zoomLevel(long key) {
+        // sign extend, levels below zoom 1 are negative
+        return (byte) (key >>> ZOOM_LEVEL_SHIFT);
+    }
+
+    public static int row(long key) {
+        return (int) (key >>> ROW_SHIFT) & mask(ROW_BITS);
+    }
+
+    public static int col(long key) {
+        return (int) key & mask(COL_BITS);
+    }
+
+    private static int mask(int bits) {
+        return (1 << bits) - 1;
+    }
+}
@@ -17,6 +17,7 @@ package com.github.barteksc.pdfviewer.source;
 
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.os.ParcelFileDescriptor;
 
 import com.github.barteksc.pdfviewer.util.FileUtils;
@@ -41,4 +42,16 @@ public class AssetSource implements DocumentSource {
         ParcelFileDescriptor pfd = ParcelFileDescriptor.open(f, ParcelFileDescriptor.MODE_READ_ONLY);
         return pdfiumSDK.newDocument(pfd, password);
     }
+
+    @Override
+    public String getFingerprint(Context context) {
+        // assets change only when the application is updated
+        try {
+            long lastUpdateTime = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+            return "asset:" + assetName + ":" + lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
 }
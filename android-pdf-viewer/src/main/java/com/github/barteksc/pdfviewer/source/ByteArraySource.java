@@ -22,6 +22,7 @@ import com.shockwave.pdfium.PdfiumCore;
 
 
 import java.io.IOException;
+import java.util.zip.CRC32;
 
 public class ByteArraySource implements DocumentSource {
 
@@ -35,4 +36,11 @@ public class ByteArraySource implements DocumentSource {
     public PdfDocument createDocument(Context context, PdfiumCore core, String password) throws IOException {
         return core.newDocument(data, password);
     }
+
+    @Override
+    public String getFingerprint(Context context) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return "bytes:" + data.length + ":" + crc.getValue();
+    }
 }
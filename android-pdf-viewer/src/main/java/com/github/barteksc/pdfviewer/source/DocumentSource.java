@@ -17,6 +17,7 @@ package com.github.barteksc.pdfviewer.source;
 
 import android.content.Context;
 
+import androidx.annotation.Nullable;
 
 import com.shockwave.pdfium.PdfDocument;
 import com.shockwave.pdfium.PdfiumCore;
@@ -25,4 +26,26 @@ import java.io.IOException;
 
 public interface DocumentSource {
     PdfDocument createDocument(Context context, PdfiumCore pdfiumSDK, String password) throws IOException;
+
+    /**
+     * Get a cheap identity of the document content, used as a key of persistent caches.
+     * It must change whenever the content changes. Called on a background thread.
+     *
+     * @return fingerprint or null if the content cannot be identified cheaply, which disables persistent caching
+     */
+    @Nullable
+    default String getFingerprint(Context context) {
+        return null;
+    }
+
+    /**
+     * Check whether {@link #createDocument} can be called repeatedly, each call opening an independent
+     * handle of the same document. Additional handles allow rendering pages on several threads.
+     * Called on a background thread.
+     *
+     * @return true if the document can be opened more than once
+     */
+    default boolean canCreateMultipleDocuments() {
+        return false;
+    }
 }
@@ -38,4 +38,14 @@ public class FileSource implements DocumentSource {
         ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
         return core.newDocument(pfd, password);
     }
+
+    @Override
+    public boolean canCreateMultipleDocuments() {
+        return true;
+    }
+
+    @Override
+    public String getFingerprint(Context context) {
+        return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
 }
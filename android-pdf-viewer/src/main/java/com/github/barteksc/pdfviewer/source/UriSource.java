@@ -16,8 +16,11 @@
 package com.github.barteksc.pdfviewer.source;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
 
 import com.shockwave.pdfium.PdfDocument;
 import com.shockwave.pdfium.PdfiumCore;
@@ -38,4 +41,29 @@ public class UriSource implements DocumentSource {
         ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
         return core.newDocument(pfd, password);
     }
+
+    @Override
+    public boolean canCreateMultipleDocuments() {
+        return true;
+    }
+
+    @Override
+    public String getFingerprint(Context context) {
+        String[] projection = {OpenableColumns.SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+        try (Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+            int modifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (sizeIndex < 0 || cursor.isNull(sizeIndex)) {
+                return null;
+            }
+            String modified = modifiedIndex >= 0 && !cursor.isNull(modifiedIndex) ? cursor.getString(modifiedIndex) : "";
+            return "uri:" + uri + ":" + cursor.getLong(sizeIndex) + ":" + modified;
+        } catch (RuntimeException e) {
+            // provider does not support these columns
+            return null;
+        }
+    }
 }
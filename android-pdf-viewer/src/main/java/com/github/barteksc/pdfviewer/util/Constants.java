@@ -31,21 +31,196 @@ public class Constants {
      */
     public static float PART_SIZE = 256;
 
+    /**
+     * Maximum number of distinct colors, other than grays, of a page rendered in {@code RGB_565}
+     * in best quality mode (default 256). Pages with more colors, e.g. gradients, are rendered in {@code ARGB_8888}
+     */
+    public static int PAGE_FORMAT_MAX_COLORS = 256;
+
+    /**
+     * Maximum number of gray levels of smooth areas, quantized to {@code RGB_565}, which {@code RGB_565} cannot
+     * show exactly, of a page rendered in {@code RGB_565} in best quality mode (default 8). Pages with more,
+     * covering over {@link #PAGE_FORMAT_MAX_RAMP_SHARE} of the page, like grayscale scans or shaded drawings,
+     * are rendered in {@code ARGB_8888} to avoid banded and tinted gray ramps
+     */
+    public static int PAGE_FORMAT_MAX_GRAY_LEVELS = 8;
+
+    /**
+     * Part of the page which gray ramps may cover in a page rendered in {@code RGB_565} (default 0.05)
+     */
+    public static float PAGE_FORMAT_MAX_RAMP_SHARE = 0.05f;
+
+    /**
+     * Part of the page a gray level must cover to count as a level of a ramp (default 0.002).
+     * Levels of anti-aliased edges of text and lines are spread over a few pixels each
+     */
+    public static float PAGE_FORMAT_MIN_LEVEL_SHARE = 0.002f;
+
+    /**
+     * Maximum difference of neighboring gray pixels, out of 255, which are considered a smooth area (default 6)
+     */
+    public static int PAGE_FORMAT_RAMP_STEP = 6;
+
+    /** Maximum difference between color channels of a pixel which is considered gray (default 8) */
+    public static int PAGE_FORMAT_GRAY_TOLERANCE = 8;
+
+    /** Resolution of drafts of parts rendered before the final ones, relative to the final resolution */
+    public static float DRAFT_SCALE = 0.5f;
+
+    /**
+     * Parts are rendered only at discrete zoom levels, the nearest one at or above the current zoom,
+     * and scaled on screen. This is the number of levels per doubling of zoom (default 2, i.e. a step of sqrt(2)).
+     * More levels give sharper parts for more rendering when zooming
+     */
+    public static int ZOOM_LEVELS_PER_DOUBLING = 2;
+
     /**
      * Part of the PDF document above and below the currently visible screen
      * that should be preloaded for smoother vertical scrolling, in dp
      */
     public static int PRELOAD_OFFSET = 20;
 
+    /**
+     * Time the main thread may spend caching rendered parts in one frame, in milliseconds (default 4).
+     * Parts rendered meanwhile are cached together once per frame, the rest on the following frames
+     */
+    public static long RENDER_APPLY_BUDGET = 4;
+
+    /** Minimum interval between calls of {@code OnRenderStatsListener}, in milliseconds */
+    public static long STATS_INTERVAL = 1000;
+
+    /** Default number of threads rendering parts, leaving one core for the main thread */
+    public static int RENDER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
     /** Number of preloaded rows or columns */
     public static int PRELOAD_COUNT = 1;
 
     public static class Cache {
 
-        /** The size of the cache (number of bitmaps kept) */
+        /**
+         * Expected number of bitmaps kept, used only to presize the cache.
+         * The cache itself is bounded by {@link #CACHE_MEMORY_FRACTION}
+         */
         public static int CACHE_SIZE = 120;
 
+        /**
+         * Part of the application memory class that rendered parts may occupy (default 0.2).
+         * Can be overridden per view with {@code PDFView#setMaxCacheBytes(long)}
+         */
+        public static float CACHE_MEMORY_FRACTION = 0.2f;
+
+        /**
+         * Part of the application memory class that bitmaps of evicted parts may occupy
+         * while waiting to be reused for new parts (default 0.05)
+         */
+        public static float BITMAP_POOL_MEMORY_FRACTION = 0.05f;
+
+        /**
+         * Side of a sheet of the tile atlas in pixels (default 1024), holding 16 parts of {@link Constants#PART_SIZE}
+         */
+        public static int ATLAS_SHEET_SIZE = 1024;
+
+        /**
+         * Maximum number of native pages open in all handles of a document (default 64),
+         * least recently used pages are closed and opened again when needed.
+         * If the pdfium binding cannot close single pages, this bounds each handle used for rendering instead:
+         * a handle with more pages is closed once released and replaced by a new one, if the document source
+         * can open the document repeatedly. Pages of other sources then stay open until the document is closed
+         */
+        public static int MAX_OPEN_PAGES = 64;
+
+        /** Number of pages before and after the current page which are kept open (default 2) */
+        public static int KEEP_OPEN_PAGES_AROUND = 2;
+
+        /**
+         * Maximum number of evicted parts waiting to be written to the disk cache (default 8).
+         * Parts evicted meanwhile, e.g. when scrolling fast, are not stored and their bitmaps are reused at once
+         */
+        public static int DISK_CACHE_MAX_PENDING_WRITES = 8;
+
+        /** Maximum size of the disk cache of evicted parts, in bytes (default 64 MB) */
+        public static long DISK_CACHE_SIZE = 64 * 1024 * 1024;
+
+        /**
+         * @deprecated thumbnails are bounded by {@link #THUMBNAILS_MEMORY_FRACTION}, this value is ignored
+         */
+        @Deprecated
         public static int THUMBNAILS_CACHE_SIZE = 6;
+
+        /**
+         * Part of the application memory class that page thumbnails may occupy (default 0.1),
+         * in addition to {@link #CACHE_MEMORY_FRACTION}
+         */
+        public static float THUMBNAILS_MEMORY_FRACTION = 0.1f;
+
+        /**
+         * Number of steps in which cache limits lowered on memory pressure grow back (default 10)
+         */
+        public static int TRIM_GROWTH_STEPS = 10;
+
+        /**
+         * Interval between steps of growing the cache back after memory pressure, in milliseconds (default 2000)
+         */
+        public static long TRIM_GROWTH_INTERVAL = 2000;
+
+        /** Maximum number of documents whose first page preview is kept on disk (default 32) */
+        public static int PREVIEW_CACHE_SIZE = 32;
+
+        /** Maximum number of documents whose page sizes are kept on disk (default 64) */
+        public static int LAYOUT_CACHE_SIZE = 64;
+    }
+
+    public static class Prefetch {
+
+        /**
+         * Velocity of scrolling is considered zero when offsets did not change for this long, in milliseconds
+         */
+        public static long VELOCITY_TIMEOUT = 100;
+
+        /**
+         * Weight of the latest measurement in the smoothed scroll velocity, between 0 and 1
+         */
+        public static float VELOCITY_SMOOTHING = 0.5f;
+
+        /**
+         * Maximum length of the area preloaded in the direction of scrolling, in screen lengths (default 1)
+         */
+        public static float MAX_SCREENS = 1f;
+
+        /**
+         * Speed in screen lengths per second above which only thumbnails are rendered while scrolling (default 4)
+         */
+        public static float THUMBNAILS_ONLY_SPEED = 4f;
+    }
+
+    public static class Layout {
+
+        /**
+         * Number of pages measured before a document is shown in lazy layout mode (default 32),
+         * half of them around the default page and half spread over the document.
+         * Smaller documents are measured completely
+         */
+        public static int SAMPLE_PAGES = 32;
+
+        /** Number of pages measured at once in the background in lazy layout mode (default 50) */
+        public static int MEASURE_BATCH = 50;
+
+        /** Delay of applying measured page sizes while the view is animated, in milliseconds (default 100) */
+        public static long APPLY_RETRY_DELAY = 100;
+    }
+
+    public static class Batch {
+
+        /**
+         * Maximum number of grid cells of a page rendered together in one call (default 6), 1 disables batching
+         */
+        public static int MAX_TILES = 6;
+
+        /**
+         * Minimum fraction of the cells of a batch which must be requested parts (default 0.75),
+         * the rest is rendered and discarded
+         */
+        public static float MIN_COVERAGE = 0.75f;
     }
 
     public static class Pinch {
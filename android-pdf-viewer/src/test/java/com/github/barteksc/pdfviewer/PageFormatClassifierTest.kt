@@ -0,0 +1,57 @@
+package com.github.barteksc.pdfviewer
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class PageFormatClassifierTest {
+
+    @Test
+    fun textPageFitsRgb565() {
+        val pixels = IntArray(WIDTH * HEIGHT) { WHITE }
+        // lines of glyph strokes with anti-aliased edges of many gray levels
+        var glyph = 0
+        for (y in 0 until HEIGHT) {
+            if (y % 12 >= 8) {
+                continue
+            }
+            for (x in 4 until WIDTH - 8 step 8) {
+                val edge = 30 + (glyph++ * 7) % 200
+                pixels[y * WIDTH + x] = gray(edge)
+                pixels[y * WIDTH + x + 1] = BLACK
+                pixels[y * WIDTH + x + 2] = BLACK
+                pixels[y * WIDTH + x + 3] = gray(255 - edge)
+            }
+        }
+        assertTrue(PageFormatClassifier.fitsRgb565(pixels, WIDTH))
+    }
+
+    @Test
+    fun gradientPageKeepsArgb8888() {
+        val pixels = IntArray(WIDTH * HEIGHT) { gray(it % WIDTH * 255 / (WIDTH - 1)) }
+        assertFalse(PageFormatClassifier.fitsRgb565(pixels, WIDTH))
+    }
+
+    @Test
+    fun textPageWithGradientFillKeepsArgb8888() {
+        val pixels = IntArray(WIDTH * HEIGHT) { WHITE }
+        // shaded box over a fifth of the page
+        for (y in 0 until HEIGHT / 5) {
+            for (x in 0 until WIDTH) {
+                pixels[y * WIDTH + x] = gray(64 + x * 128 / WIDTH)
+            }
+        }
+        assertFalse(PageFormatClassifier.fitsRgb565(pixels, WIDTH))
+    }
+
+    private fun gray(level: Int): Int {
+        return (0xFF shl 24) or (level shl 16) or (level shl 8) or level
+    }
+
+    companion object {
+        private const val WIDTH = 300
+        private const val HEIGHT = 400
+        private const val WHITE = -0x1
+        private const val BLACK = -0x1000000
+    }
+}